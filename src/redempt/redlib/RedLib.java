@@ -8,19 +8,15 @@ import redempt.redlib.commandmanager.ArgType;
 import redempt.redlib.commandmanager.CommandParser;
 import redempt.redlib.commandmanager.Messages;
 import redempt.redlib.config.ConfigManager;
+import redempt.redlib.dev.BlockDataCommands;
 import redempt.redlib.dev.ChainCommand;
 import redempt.redlib.dev.StructureTool;
 import redempt.redlib.dev.profiler.ProfilerCommands;
+import redempt.redlib.misc.ClassIndex;
 
-import java.io.File;
-import java.lang.reflect.Modifier;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -73,7 +69,7 @@ public class RedLib extends JavaPlugin {
             new CommandParser(this.getResource("command.rdcml"))
                     .setArgTypes(ArgType.of("material", Material.class), chain.getArgType())
                     .parse()
-                    .register("redlib", new ProfilerCommands(), StructureTool.enable(), chain);
+                    .register("redlib", new ProfilerCommands(), StructureTool.enable(), new BlockDataCommands(), chain);
         }
     }
 
@@ -104,7 +100,8 @@ public class RedLib extends JavaPlugin {
     }
 
     /**
-     * Gets all non-abstract, non-interface classes which extend a certain class within a plugin
+     * Gets all non-abstract, non-interface classes which extend a certain class within a plugin. Classes are found
+     * through a cached {@link ClassIndex} of the plugin's jar, and are not initialized.
      *
      * @param plugin The plugin
      * @param clazz  The class
@@ -112,36 +109,7 @@ public class RedLib extends JavaPlugin {
      * @return The list of matching classes
      */
     public static <T> List<Class<? extends T>> getExtendingClasses(Plugin plugin, Class<T> clazz) {
-        List<Class<? extends T>> list = new ArrayList<>();
-        try {
-            ClassLoader loader = plugin.getClass().getClassLoader();
-            JarFile file = new JarFile(new File(plugin.getClass().getProtectionDomain().getCodeSource().getLocation().toURI()));
-            Enumeration<JarEntry> entries = file.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                if (entry.isDirectory()) {
-                    continue;
-                }
-                String name = entry.getName();
-                if (!name.endsWith(".class")) {
-                    continue;
-                }
-                name = name.substring(0, name.length() - 6).replace("/", ".");
-                Class<?> c;
-                try {
-                    c = Class.forName(name, true, loader);
-                } catch (ClassNotFoundException | NoClassDefFoundError ex) {
-                    continue;
-                }
-                if (!clazz.isAssignableFrom(c) || Modifier.isAbstract(c.getModifiers()) || c.isInterface()) {
-                    continue;
-                }
-                list.add((Class<? extends T>) c);
-            }
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
-        }
-        return list;
+        return ClassIndex.get(plugin).getExtendingClasses(clazz);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,434 @@
+package redempt.redlib.blockdata;
+
+import redempt.redlib.json.JSONList;
+import redempt.redlib.json.JSONMap;
+import redempt.redlib.json.JSONParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Encodes and decodes the binary payloads BlockDataManager stores for each chunk. A payload is a sequence of segments,
+ * each consisting of a magic byte, a format version, a dictionary of every string used in the segment, a list of
+ * removed block offsets, and a list of blocks. Each block is keyed by a varint packing its offset within the chunk,
+ * followed by its typed entries. The first segment holds the full chunk, and any following segments are deltas
+ * which are applied in order. Legacy JSON payloads are still decoded.
+ *
+ * @author Redempt
+ */
+class BlockDataCodec {
+
+    static final byte MAGIC = (byte) 0xB7;
+    static final byte VERSION = 2;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte LIST = 7;
+    private static final byte MAP = 8;
+
+    /**
+     * Encodes the data of a chunk's DataBlocks into a binary payload
+     *
+     * @param blocks The DataBlocks in the chunk
+     * @return The encoded payload
+     */
+    static byte[] encode(Collection<DataBlock> blocks) {
+        return encodeDelta(blocks, new int[0], 0);
+    }
+
+    /**
+     * Encodes a delta segment, which can be appended to an existing payload for the same chunk
+     *
+     * @param blocks       The DataBlocks which were changed or added
+     * @param removed      The packed offsets of the blocks which were removed
+     * @param removedCount The number of offsets in the removed array to use
+     * @return The encoded delta
+     */
+    static byte[] encodeDelta(Collection<DataBlock> blocks, int[] removed, int removedCount) {
+        Map<String, Integer> dictionary = new HashMap<>();
+        ByteWriter body = new ByteWriter(blocks.size() * 16 + removedCount * 3);
+        body.writeVarInt(removedCount);
+        for (int i = 0; i < removedCount; i++) {
+            body.writeVarInt(removed[i]);
+        }
+        body.writeVarInt(blocks.size());
+        blocks.forEach(db -> {
+            body.writeVarInt(packOffset(db.getBlockPosition()));
+            writeBlock(body, db, dictionary);
+        });
+        String[] strings = new String[dictionary.size()];
+        dictionary.forEach((s, i) -> strings[i] = s);
+        ByteWriter out = new ByteWriter(body.size() + strings.length * 8 + 8);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.writeVarInt(strings.length);
+        for (String str : strings) {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            out.writeVarInt(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(body.buffer, 0, body.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a payload for a chunk, passing each block's position and data to a consumer. Accepts both
+     * binary payloads and legacy JSON payloads.
+     *
+     * @param data     The payload
+     * @param pos      The position of the chunk the payload belongs to
+     * @param consumer The consumer to pass each decoded block to
+     * @param removed  The consumer to pass the position of each block removed by a delta segment to
+     * @return The number of segments in the payload
+     */
+    static int decode(byte[] data, ChunkPosition pos, BiConsumer<BlockPosition, JSONMap> consumer, Consumer<BlockPosition> removed) {
+        if (data.length == 0) {
+            return 0;
+        }
+        if (data[0] != MAGIC) {
+            decodeLegacy(new String(data, StandardCharsets.UTF_8), consumer);
+            return 1;
+        }
+        ByteReader in = new ByteReader(data);
+        int segments = 0;
+        while (in.pos < data.length) {
+            decodeSegment(in, pos, consumer, removed);
+            segments++;
+        }
+        return segments;
+    }
+
+    private static void decodeSegment(ByteReader in, ChunkPosition pos, BiConsumer<BlockPosition, JSONMap> consumer, Consumer<BlockPosition> removed) {
+        if (in.read() != MAGIC) {
+            throw new IllegalArgumentException("Invalid block data, expected segment header at position " + (in.pos - 1));
+        }
+        byte version = in.read();
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported block data format version " + version + " in chunk " + pos);
+        }
+        String[] strings = new String[in.readVarInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readString();
+        }
+        int baseX = pos.getX() << 4;
+        int baseZ = pos.getZ() << 4;
+        if (version >= 2) {
+            int count = in.readVarInt();
+            for (int i = 0; i < count; i++) {
+                removed.accept(unpackOffset(in.readVarInt(), baseX, baseZ));
+            }
+        }
+        int count = in.readVarInt();
+        for (int i = 0; i < count; i++) {
+            BlockPosition bPos = unpackOffset(in.readVarInt(), baseX, baseZ);
+            consumer.accept(bPos, readMap(in, strings));
+        }
+    }
+
+    /**
+     * Checks whether a payload was written in the legacy JSON format
+     *
+     * @param data The payload
+     * @return Whether the payload is legacy JSON
+     */
+    static boolean isLegacy(byte[] data) {
+        return data.length > 0 && data[0] != MAGIC;
+    }
+
+    private static void decodeLegacy(String json, BiConsumer<BlockPosition, JSONMap> consumer) {
+        JSONMap map = JSONParser.parseMap(json);
+        map.forEach((key, value) -> {
+            String[] split = key.split(" ");
+            int x = Integer.parseInt(split[0]);
+            int y = Integer.parseInt(split[1]);
+            int z = Integer.parseInt(split[2]);
+            consumer.accept(new BlockPosition(x, y, z), (JSONMap) value);
+        });
+    }
+
+    static int packOffset(BlockPosition pos) {
+        return packOffset(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    static int packOffset(int x, int y, int z) {
+        return (zigzag(y) << 8) | ((x & 15) << 4) | (z & 15);
+    }
+
+    private static BlockPosition unpackOffset(int offset, int baseX, int baseZ) {
+        return new BlockPosition(baseX + ((offset >> 4) & 15), unzigzag(offset >>> 8), baseZ + (offset & 15));
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static int stringIndex(String str, Map<String, Integer> dictionary) {
+        Integer index = dictionary.get(str);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.put(str, index);
+        }
+        return index;
+    }
+
+    private static void writeBlock(ByteWriter out, DataBlock db, Map<String, Integer> dictionary) {
+        DataBlockSchema schema = db.getSchema();
+        long present = db.getPresentMask();
+        if (schema == null || present == 0) {
+            writeMap(out, db.data, dictionary);
+            return;
+        }
+        out.writeVarInt(db.data.size() + Long.bitCount(present));
+        db.data.forEach((k, v) -> {
+            out.writeVarInt(stringIndex(k, dictionary));
+            writeValue(out, v, dictionary);
+        });
+        long[] slots = db.getSlots();
+        for (int i = 0; i < slots.length; i++) {
+            if (!db.has(i)) {
+                continue;
+            }
+            out.writeVarInt(stringIndex(schema.getName(i), dictionary));
+            switch (schema.getType(i)) {
+                case INT:
+                    out.write(INT);
+                    out.writeVarInt(zigzag((int) slots[i]));
+                    break;
+                case LONG:
+                    out.write(LONG);
+                    out.writeVarLong(zigzag(slots[i]));
+                    break;
+                case DOUBLE:
+                    out.write(DOUBLE);
+                    out.writeLong(slots[i]);
+                    break;
+                case BOOLEAN:
+                    out.write(slots[i] != 0 ? TRUE : FALSE);
+                    break;
+            }
+        }
+    }
+
+    private static void writeMap(ByteWriter out, Map<String, Object> map, Map<String, Integer> dictionary) {
+        out.writeVarInt(map.size());
+        map.forEach((k, v) -> {
+            out.writeVarInt(stringIndex(k, dictionary));
+            writeValue(out, v, dictionary);
+        });
+    }
+
+    private static void writeValue(ByteWriter out, Object value, Map<String, Integer> dictionary) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.write(INT);
+            out.writeVarInt(zigzag(((Number) value).intValue()));
+        } else if (value instanceof Long) {
+            out.write(LONG);
+            out.writeVarLong(zigzag((long) value));
+        } else if (value instanceof Double || value instanceof Float) {
+            out.write(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Map) {
+            out.write(MAP);
+            writeMap(out, (Map<String, Object>) value, dictionary);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.write(LIST);
+            out.writeVarInt(list.size());
+            list.forEach(o -> writeValue(out, o, dictionary));
+        } else {
+            out.write(STRING);
+            out.writeVarInt(stringIndex(value.toString(), dictionary));
+        }
+    }
+
+    private static JSONMap readMap(ByteReader in, String[] strings) {
+        int size = in.readVarInt();
+        JSONMap map = new JSONMap();
+        for (int i = 0; i < size; i++) {
+            String key = strings[in.readVarInt()];
+            map.put(key, readValue(in, strings));
+        }
+        return map;
+    }
+
+    private static Object readValue(ByteReader in, String[] strings) {
+        byte tag = in.read();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case INT:
+                return unzigzag(in.readVarInt());
+            case LONG:
+                return unzigzag(in.readVarLong());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case STRING:
+                return strings[in.readVarInt()];
+            case LIST:
+                int size = in.readVarInt();
+                JSONList list = new JSONList();
+                list.ensureCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, strings));
+                }
+                return list;
+            case MAP:
+                return readMap(in, strings);
+            default:
+                throw new IllegalArgumentException("Invalid block data, unknown value tag " + tag + " at position " + (in.pos - 1));
+        }
+    }
+
+    private static class ByteWriter {
+
+        private byte[] buffer;
+        private int size;
+
+        public ByteWriter(int capacity) {
+            buffer = new byte[Math.max(capacity, 16)];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        public void write(byte b) {
+            ensureCapacity(1);
+            buffer[size++] = b;
+        }
+
+        public void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        public void writeVarInt(int n) {
+            ensureCapacity(5);
+            while ((n & ~0x7F) != 0) {
+                buffer[size++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            buffer[size++] = (byte) n;
+        }
+
+        public void writeVarLong(long n) {
+            ensureCapacity(10);
+            while ((n & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            buffer[size++] = (byte) n;
+        }
+
+        public void writeLong(long n) {
+            ensureCapacity(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                buffer[size++] = (byte) (n >>> i);
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+    }
+
+    private static class ByteReader {
+
+        private byte[] data;
+        private int pos;
+
+        public ByteReader(byte[] data) {
+            this.data = data;
+        }
+
+        public byte read() {
+            if (pos >= data.length) {
+                throw new IllegalArgumentException("Invalid block data, unexpected end of payload");
+            }
+            return data[pos++];
+        }
+
+        public int readVarInt() {
+            int out = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = read();
+                out |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return out;
+                }
+            }
+            throw new IllegalArgumentException("Invalid block data, malformed varint at position " + pos);
+        }
+
+        public long readVarLong() {
+            long out = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = read();
+                out |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return out;
+                }
+            }
+            throw new IllegalArgumentException("Invalid block data, malformed varint at position " + pos);
+        }
+
+        public long readLong() {
+            long out = 0;
+            for (int i = 0; i < 8; i++) {
+                out = (out << 8) | (read() & 0xFF);
+            }
+            return out;
+        }
+
+        public String readString() {
+            int length = readVarInt();
+            if (pos + length > data.length) {
+                throw new IllegalArgumentException("Invalid block data, unexpected end of payload");
+            }
+            String str = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return str;
+        }
+
+    }
+
+}
@@ -64,11 +64,7 @@ class BlockDataListener implements Listener {
 
     private void handleExplosion(List<Block> blocks, Cancellable e) {
         List<DataBlock> toRemove = new ArrayList<>();
-        blocks.forEach(b -> {
-            DataBlock db = manager.getDataBlock(b);
-            if (db == null) {
-                return;
-            }
+        manager.getDataBlocks(blocks, false).forEach(db -> {
             DataBlockDestroyEvent ev = new DataBlockDestroyEvent(db, (Event) e, DestroyCause.EXPLOSION);
             Bukkit.getPluginManager().callEvent(ev);
             if (!ev.isCancelled()) {
@@ -83,7 +79,7 @@ class BlockDataListener implements Listener {
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onCombust(BlockBurnEvent e) {
-        DataBlock db = manager.getDataBlock(e.getBlock());
+        DataBlock db = manager.getDataBlock(e.getBlock(), false);
         fireDestroy(db, e, DestroyCause.COMBUST);
     }
 
@@ -99,17 +95,13 @@ class BlockDataListener implements Listener {
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onEntityChangeBlock(EntityChangeBlockEvent e) {
-        DataBlock db = manager.getDataBlock(e.getBlock());
+        DataBlock db = manager.getDataBlock(e.getBlock(), false);
         fireDestroy(db, e, DestroyCause.ENTITY);
     }
 
     private void handlePiston(List<Block> blocks, BlockPistonEvent e) {
         List<DataBlock> toMove = new ArrayList<>();
-        blocks.forEach(b -> {
-            DataBlock db = manager.getDataBlock(b);
-            if (db == null) {
-                return;
-            }
+        manager.getDataBlocks(blocks, false).forEach(db -> {
             Block destination = db.getBlock().getRelative(e.getDirection());
             DataBlockMoveEvent ev = new DataBlockMoveEvent(db, destination, e);
             Bukkit.getPluginManager().callEvent(ev);
@@ -123,11 +115,11 @@ class BlockDataListener implements Listener {
         Map<Block, JSONMap> moved = new HashMap<>();
         toMove.forEach(db -> {
             Block destination = db.getBlock().getRelative(e.getDirection());
-            moved.put(destination, db.data);
+            moved.put(destination, db.toJSONMap());
         });
         toMove.forEach(manager::remove);
         moved.forEach((block, data) -> {
-            manager.getDataBlock(block).data = data;
+            manager.getDataBlock(block).setData(data);
         });
     }
 
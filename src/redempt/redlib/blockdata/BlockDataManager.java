@@ -1,5 +1,7 @@
 package redempt.redlib.blockdata;
 
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.event.world.ChunkLoadEvent;
@@ -8,15 +10,21 @@ import org.bukkit.plugin.Plugin;
 import redempt.redlib.RedLib;
 import redempt.redlib.blockdata.backend.BlockDataBackend;
 import redempt.redlib.json.JSONMap;
-import redempt.redlib.json.JSONParser;
 import redempt.redlib.misc.EventListener;
+import redempt.redlib.misc.Task;
+import redempt.redlib.region.Region;
 
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Manages persistent data attached to blocks, backed by either SQLite or chunk PersistentDataContainers
@@ -52,6 +60,53 @@ public class BlockDataManager {
         return new BlockDataManager(plugin, backend, autoLoad, events);
     }
 
+    /**
+     * Creates a BlockDataManager backed by SQLite, optionally compressing chunk data. Compression happens on the
+     * backend's thread, and compressed and uncompressed rows can coexist in the same database.
+     *
+     * @param plugin   The Plugin that owns the data
+     * @param path     The path to the SQLite database
+     * @param compress Whether to compress chunk data before writing it
+     * @param autoLoad Whether to automatically load data for newly-loaded chunks
+     * @param events   Whether to listen for events to automatically move and remove DataBlocks in response to their owning blocks being moved and removed
+     * @return The created BlockDataManager
+     */
+    public static BlockDataManager createSQLite(Plugin plugin, Path path, boolean compress, boolean autoLoad, boolean events) {
+        BlockDataBackend backend = BlockDataBackend.sqlite(path, compress);
+        return new BlockDataManager(plugin, backend, autoLoad, events);
+    }
+
+    /**
+     * Creates a BlockDataManager backed by append-only region files, grouping the data of each 32x32 chunk region
+     * into its own file
+     *
+     * @param plugin    The Plugin that owns the data
+     * @param directory The directory to store the region files in
+     * @param autoLoad  Whether to automatically load data for newly-loaded chunks
+     * @param events    Whether to listen for events to automatically move and remove DataBlocks in response to their owning blocks being moved and removed
+     * @return The created BlockDataManager
+     */
+    public static BlockDataManager createRegionFile(Plugin plugin, Path directory, boolean autoLoad, boolean events) {
+        BlockDataBackend backend = BlockDataBackend.regionFile(directory);
+        return new BlockDataManager(plugin, backend, autoLoad, events);
+    }
+
+    /**
+     * Creates a BlockDataManager backed by append-only region files, which can migrate the data from an existing
+     * SQLite database with {@link #migrate()}
+     *
+     * @param plugin      The Plugin that owns the data
+     * @param directory   The directory to store the region files in
+     * @param migrateFrom The path to the SQLite database to migrate data from
+     * @param autoLoad    Whether to automatically load data for newly-loaded chunks
+     * @param events      Whether to listen for events to automatically move and remove DataBlocks in response to their owning blocks being moved and removed
+     * @return The created BlockDataManager
+     */
+    public static BlockDataManager createRegionFile(Plugin plugin, Path directory, Path migrateFrom, boolean autoLoad, boolean events) {
+        BlockDataBackend backend = BlockDataBackend.regionFile(directory, migrateFrom);
+        return new BlockDataManager(plugin, backend, autoLoad, events);
+    }
+
     /**
      * Creates a BlockDataManager backed by SQLite if the server is running a version lower than 1.14, and chunk PersistentDataContainers otherwise
      *
@@ -66,12 +121,36 @@ public class BlockDataManager {
         return new BlockDataManager(plugin, backend, autoLoad, events);
     }
 
+    private static final int MAX_DELTAS = 16;
+    private static List<BlockDataManager> managers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return All BlockDataManagers which have been created and not yet closed
+     */
+    public static List<BlockDataManager> getManagers() {
+        return Collections.unmodifiableList(managers);
+    }
+
+
     private BlockDataBackend backend;
     private Plugin plugin;
     private BlockDataListener listener;
-    private Map<ChunkPosition, Map<BlockPosition, DataBlock>> dataBlocks = new ConcurrentHashMap<>();
+    private DataBlockIndex dataBlocks = new DataBlockIndex();
     private Map<ChunkPosition, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
     private Set<ChunkPosition> modified = Collections.synchronizedSet(new HashSet<>());
+    private ConcurrentLongMap<Boolean> present = new ConcurrentLongMap<>();
+    private volatile boolean presenceReady = false;
+    private volatile int presenceGeneration;
+    private Map<String, ValueIndex> indexes = new ConcurrentHashMap<>();
+    private Map<String, DataBlockSchema> schemas = new ConcurrentHashMap<>();
+    private Map<String, Integer> typeIds = new ConcurrentHashMap<>();
+    private AtomicInteger nextTypeId = new AtomicInteger();
+    private AtomicLong loadedBlocks = new AtomicLong();
+    private volatile long maxLoadedBlocks = 0;
+    private AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private Task autoSaveTask;
+    private Deque<ChunkPosition> autoSaveQueue = new ArrayDeque<>();
+    private BlockDataMetrics metrics;
 
     /**
      * Asynchronously retrieves a DataBlock
@@ -81,26 +160,121 @@ public class BlockDataManager {
      * @return A CompletableFuture with the DataBlock
      */
     public CompletableFuture<DataBlock> getDataBlockAsync(Block block, boolean create) {
-        ChunkPosition pos = new ChunkPosition(block.getChunk());
-        return load(pos).thenApply(n -> {
-            BlockPosition bPos = new BlockPosition(block);
-            DataBlock db = dataBlocks.get(pos).get(bPos);
-            if (db != null) {
-                return db;
+        String world = block.getWorld().getName();
+        LoadedChunk chunk = dataBlocks.get(world, block.getX() >> 4, block.getZ() >> 4);
+        if (chunk != null) {
+            return CompletableFuture.completedFuture(getDataBlock(chunk, block, create));
+        }
+        if (!create && !mayHaveData(world, block.getX() >> 4, block.getZ() >> 4)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ChunkPosition pos = new ChunkPosition(block.getX() >> 4, block.getZ() >> 4, world);
+        return load(pos).thenCompose(n -> {
+            LoadedChunk loaded = dataBlocks.get(pos);
+            // The chunk may have been unloaded again as soon as it was published
+            return loaded == null ? getDataBlockAsync(block, create) : CompletableFuture.completedFuture(getDataBlock(loaded, block, create));
+        });
+    }
+
+    /**
+     * Asynchronously retrieves the DataBlocks for many Blocks at once. Blocks are grouped by chunk, so each chunk is
+     * loaded at most once, and Blocks in chunks which are already loaded are resolved immediately.
+     *
+     * @param blocks The Blocks to get the DataBlocks for
+     * @param create Whether to create new DataBlocks for Blocks which do not have one
+     * @return A CompletableFuture with a list of the DataBlocks found, in no particular order, with no entries for
+     * Blocks which have no DataBlock
+     */
+    public CompletableFuture<List<DataBlock>> getDataBlocksAsync(Collection<Block> blocks, boolean create) {
+        List<DataBlock> result = new ArrayList<>();
+        List<Block> pending = null;
+        Map<ChunkPosition, CompletableFuture<Void>> loads = null;
+        LoadedChunk last = null;
+        for (Block block : blocks) {
+            String world = block.getWorld().getName();
+            int cx = block.getX() >> 4;
+            int cz = block.getZ() >> 4;
+            LoadedChunk chunk = last;
+            if (chunk == null || chunk.getPosition().getX() != cx || chunk.getPosition().getZ() != cz
+                    || !chunk.getPosition().getWorldName().equals(world)) {
+                chunk = dataBlocks.get(world, cx, cz);
             }
-            if (!create) {
-                return null;
+            if (chunk != null) {
+                last = chunk;
+                DataBlock db = getDataBlock(chunk, block, create);
+                if (db != null) {
+                    result.add(db);
+                }
+                continue;
             }
-            db = new DataBlock(new JSONMap(), bPos, block.getWorld().getName(), this);
-            dataBlocks.get(pos).put(bPos, db);
-            setModified(pos);
-            return db;
+            if (!create && !mayHaveData(world, cx, cz)) {
+                continue;
+            }
+            if (pending == null) {
+                pending = new ArrayList<>();
+                loads = new HashMap<>();
+            }
+            pending.add(block);
+            loads.computeIfAbsent(new ChunkPosition(cx, cz, world), this::load);
+        }
+        if (pending == null) {
+            return CompletableFuture.completedFuture(result);
+        }
+        List<Block> toResolve = pending;
+        return CompletableFuture.allOf(loads.values().toArray(new CompletableFuture<?>[0])).thenCompose(v -> {
+            List<Block> unloaded = new ArrayList<>();
+            for (Block block : toResolve) {
+                LoadedChunk chunk = dataBlocks.get(block.getWorld().getName(), block.getX() >> 4, block.getZ() >> 4);
+                if (chunk == null) {
+                    unloaded.add(block);
+                    continue;
+                }
+                DataBlock db = getDataBlock(chunk, block, create);
+                if (db != null) {
+                    result.add(db);
+                }
+            }
+            if (unloaded.isEmpty()) {
+                return CompletableFuture.completedFuture(result);
+            }
+            return getDataBlocksAsync(unloaded, create).thenApply(rest -> {
+                result.addAll(rest);
+                return result;
+            });
         });
     }
 
+    /**
+     * Retrieves the DataBlocks for many Blocks at once. Blocks are grouped by chunk, so each chunk is loaded at
+     * most once, and Blocks in chunks which are already loaded are resolved without blocking.
+     *
+     * @param blocks The Blocks to get the DataBlocks for
+     * @param create Whether to create new DataBlocks for Blocks which do not have one
+     * @return A list of the DataBlocks found, in no particular order, with no entries for Blocks which have no DataBlock
+     */
+    public List<DataBlock> getDataBlocks(Collection<Block> blocks, boolean create) {
+        return unwrap(getDataBlocksAsync(blocks, create));
+    }
+
+    private DataBlock getDataBlock(LoadedChunk chunk, Block block, boolean create) {
+        chunk.touch();
+        int offset = LoadedChunk.offset(block.getX(), block.getY(), block.getZ());
+        DataBlock db = chunk.get(offset);
+        if (db != null || !create) {
+            return db;
+        }
+        db = new DataBlock(new JSONMap(), new BlockPosition(block), chunk.getPosition(), this);
+        chunk.put(offset, db);
+        db.markModified();
+        loadedBlocks.incrementAndGet();
+        checkBudget();
+        return db;
+    }
+
     private BlockDataManager(Plugin plugin, BlockDataBackend backend, boolean autoLoad, boolean events) {
         this.plugin = plugin;
         this.backend = backend;
+        this.metrics = new BlockDataMetrics(this, backend.getClass().getSimpleName());
         new EventListener<>(plugin, ChunkUnloadEvent.class, e -> unload(new ChunkPosition(e.getChunk())));
         if (autoLoad) {
             new EventListener<>(plugin, ChunkLoadEvent.class, e -> load(new ChunkPosition(e.getChunk())));
@@ -108,15 +282,62 @@ public class BlockDataManager {
         if (events) {
             listener = new BlockDataListener(this, plugin);
         }
+        loadPresence();
+        managers.add(this);
+    }
+
+    private void loadPresence() {
+        int generation = presenceGeneration;
+        backend.loadKeys().thenAccept(keys -> {
+            // A migration started since this load was queued, and the keys may not include the migrated chunks
+            if (keys == null || generation != presenceGeneration) {
+                return;
+            }
+            keys.forEach(pos -> present.put(dataBlocks.key(pos), true));
+            presenceReady = true;
+        });
+    }
+
+    /**
+     * Checks the presence index for whether a chunk may have data stored in the backend. Always true until the
+     * index has been built, or if the backend cannot list its chunks.
+     */
+    private boolean mayHaveData(String world, int cx, int cz) {
+        boolean result = !presenceReady || present.containsKey(dataBlocks.key(world, cx, cz));
+        metrics.recordPresence(!result);
+        return result;
     }
 
     /**
-     * Attempts to migrate SQLite from an older version of the database from the previous BlockDataManager library
+     * Attempts to migrate SQLite from an older version of the database from the previous BlockDataManager library,
+     * or for region file backends, the data from the SQLite database they were created with
      *
      * @return Whether a migration was completed successfully
      */
     public boolean migrate() {
-        return backend.attemptMigration(this);
+        presenceReady = false;
+        presenceGeneration++;
+        try {
+            return backend.attemptMigration(this);
+        } finally {
+            rebuildPresence();
+        }
+    }
+
+    /**
+     * Rebuilds the presence index from the keys currently in the backend, blocking until it is done. The index
+     * reports every chunk as possibly present until then, so chunks written by a migration are never mistaken for
+     * empty ones.
+     */
+    private void rebuildPresence() {
+        presenceReady = false;
+        Collection<ChunkPosition> keys = unwrap(backend.loadKeys());
+        present.clear();
+        if (keys == null) {
+            return;
+        }
+        keys.forEach(pos -> present.put(dataBlocks.key(pos), true));
+        presenceReady = true;
     }
 
     /**
@@ -127,21 +348,91 @@ public class BlockDataManager {
     }
 
     /**
-     * Saves all data loaded in this BlockDataManager
+     * @return The backend this BlockDataManager stores its data in
+     */
+    public BlockDataBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return The metrics for this BlockDataManager
+     */
+    public BlockDataMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Saves all data loaded in this BlockDataManager, blocking until it has been written
      */
     public void save() {
-        List<ChunkPosition> modified = new ArrayList<>(this.modified);
-        modified.forEach(c -> save(c, true));
-        this.modified.clear();
-        unwrap(backend.saveAll());
+        unwrap(flushAsync());
+    }
+
+    /**
+     * Encodes all modified chunks on the calling thread and hands them to the backend to be written asynchronously.
+     * Should be called from the main thread.
+     *
+     * @return A CompletableFuture which completes once all the data has been written
+     */
+    public CompletableFuture<Void> flushAsync() {
+        List<ChunkPosition> modified;
+        synchronized (this.modified) {
+            modified = new ArrayList<>(this.modified);
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[modified.size() + 1];
+        for (int i = 0; i < modified.size(); i++) {
+            futures[i] = save(modified.get(i), true);
+        }
+        // Flush the queued writes now rather than waiting for the backend's next scheduled flush
+        futures[modified.size()] = backend.saveAll();
+        return CompletableFuture.allOf(futures);
     }
 
     /**
      * Saves all data loaded in this BlockDataManager and closes connections where needed
      */
     public void saveAndClose() {
-        save();
-        unwrap(backend.close());
+        disableAutoSave();
+        managers.remove(this);
+        unwrap(flushAsync().thenCompose(v -> backend.close()));
+    }
+
+    /**
+     * Enables autosaving, which periodically saves modified chunks a few at a time on the main thread, so that saving
+     * never takes more than the given time per tick. Encoded data is written by the backend asynchronously.
+     *
+     * @param intervalTicks The interval in ticks at which to start saving the chunks which have been modified
+     * @param budgetMillis  The maximum time in milliseconds to spend saving chunks each tick
+     */
+    public void enableAutoSave(int intervalTicks, double budgetMillis) {
+        disableAutoSave();
+        long budget = (long) (budgetMillis * 1000000);
+        int[] ticks = {intervalTicks};
+        autoSaveTask = Task.syncRepeating(plugin, () -> {
+            if (--ticks[0] <= 0) {
+                ticks[0] = intervalTicks;
+                if (autoSaveQueue.isEmpty()) {
+                    synchronized (modified) {
+                        autoSaveQueue.addAll(modified);
+                    }
+                }
+            }
+            long deadline = System.nanoTime() + budget;
+            while (!autoSaveQueue.isEmpty() && System.nanoTime() < deadline) {
+                save(autoSaveQueue.poll(), false);
+            }
+        }, 1, 1);
+    }
+
+    /**
+     * Disables autosaving, if it was enabled
+     */
+    public void disableAutoSave() {
+        if (autoSaveTask != null) {
+            autoSaveTask.cancel();
+            autoSaveTask = null;
+        }
+        autoSaveQueue.clear();
     }
 
     protected void setModified(ChunkPosition pos) {
@@ -163,30 +454,63 @@ public class BlockDataManager {
             return CompletableFuture.completedFuture(null);
         }
         modified.remove(pos);
-        JSONMap map = new JSONMap();
-        Map<BlockPosition, DataBlock> blocks = dataBlocks.get(pos);
-        if (blocks == null) {
+        LoadedChunk chunk = dataBlocks.get(pos);
+        if (chunk == null) {
             return CompletableFuture.completedFuture(null);
         }
-        if (blocks.size() == 0) {
-            dataBlocks.remove(pos);
+        if (chunk.size() == 0) {
+            removeChunk(pos);
+            present.remove(dataBlocks.key(pos));
             return backend.remove(pos);
         }
-        blocks.forEach((k, v) -> {
-            map.put(k.toString(), v.data);
-        });
-        String data = map.toString();
-        return backend.save(pos, data);
+        if (backend.supportsDeltas() && !chunk.isFullSaveRequired() && chunk.getDeltaCount() < MAX_DELTAS) {
+            // Dirty flags are cleared as blocks are taken, so a block changed while encoding is saved again later.
+            // If too much changed for a delta, the full save below covers everything that was taken.
+            List<DataBlock> dirty = chunk.takeDirty();
+            int[] removed = chunk.takeRemoved();
+            if (dirty.isEmpty() && removed.length == 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if ((dirty.size() + removed.length) * 2 < chunk.size()) {
+                byte[] delta = BlockDataCodec.encodeDelta(dirty, removed, removed.length);
+                chunk.setDeltaCount(chunk.getDeltaCount() + 1);
+                metrics.recordWrite(delta.length);
+                return backend.appendBytes(pos, delta);
+            }
+        }
+        chunk.clearChanges();
+        byte[] data = BlockDataCodec.encode(chunk.values());
+        chunk.setDeltaCount(0);
+        chunk.setFullSaveRequired(false);
+        present.put(dataBlocks.key(pos), true);
+        metrics.recordWrite(data.length);
+        return backend.saveBytes(pos, data);
     }
 
     private CompletableFuture<Void> unload(ChunkPosition pos) {
-        CompletableFuture<Void> load = loading.remove(pos);
+        CompletableFuture<Void> load;
+        synchronized (loading) {
+            load = loading.remove(pos);
+        }
         if (load != null) {
             load.cancel(true);
-            dataBlocks.remove(pos);
+            removeChunk(pos);
             return CompletableFuture.completedFuture(null);
         }
-        return save(pos, false).thenRun(() -> dataBlocks.remove(pos));
+        CompletableFuture<Void> save = save(pos, false);
+        removeChunk(pos);
+        return save;
+    }
+
+    private void removeChunk(ChunkPosition pos) {
+        LoadedChunk chunk = dataBlocks.remove(pos);
+        if (chunk == null) {
+            return;
+        }
+        loadedBlocks.addAndGet(-chunk.size());
+        if (!indexes.isEmpty()) {
+            chunk.forEach(this::unindex);
+        }
     }
 
     /**
@@ -197,7 +521,16 @@ public class BlockDataManager {
     public void remove(DataBlock db) {
         ChunkPosition cpos = db.getChunkPosition();
         setModified(cpos);
-        Optional.ofNullable(dataBlocks.get(cpos)).ifPresent(m -> m.remove(db.getBlockPosition()));
+        LoadedChunk chunk = dataBlocks.get(cpos);
+        if (chunk != null) {
+            BlockPosition bPos = db.getBlockPosition();
+            int offset = LoadedChunk.offset(bPos.getX(), bPos.getY(), bPos.getZ());
+            if (chunk.remove(offset) != null) {
+                chunk.markRemoved(offset);
+                loadedBlocks.decrementAndGet();
+                unindex(db);
+            }
+        }
     }
 
     /**
@@ -212,7 +545,7 @@ public class BlockDataManager {
         ChunkPosition cpos = new ChunkPosition(location);
         modified.add(cpos);
         return getDataBlockAsync(location, true).thenApply(b -> {
-            b.data = db.data;
+            b.setData(db.toJSONMap());
             return b;
         });
     }
@@ -283,8 +616,8 @@ public class BlockDataManager {
      * @return The DataBlocks if they are loaded, otherwise an empty collection
      */
     public Collection<DataBlock> getLoaded(World world, int cx, int cz) {
-        ChunkPosition pos = new ChunkPosition(cx, cz, world.getName());
-        return Optional.ofNullable(dataBlocks.get(pos)).map(Map::values).orElseGet(ArrayList::new);
+        LoadedChunk chunk = dataBlocks.get(world.getName(), cx, cz);
+        return chunk == null ? new ArrayList<>() : chunk.values();
     }
 
     /**
@@ -296,41 +629,83 @@ public class BlockDataManager {
      * @return Whether the DataBlocks for the given chunk are loaded
      */
     public boolean isLoaded(World world, int cx, int cz) {
-        ChunkPosition pos = new ChunkPosition(cx, cz, world.getName());
-        return dataBlocks.containsKey(pos);
+        return dataBlocks.get(world.getName(), cx, cz) != null;
     }
 
+    /**
+     * Loads a chunk. Its data is decoded into a new LoadedChunk on the thread the backend completes on, which is only
+     * published once decoding has finished, so readers never see a partially loaded chunk. A load which is cancelled
+     * by the chunk being unloaded does not publish anything.
+     */
     private CompletableFuture<Void> load(ChunkPosition pos) {
-        if (dataBlocks.containsKey(pos)) {
+        if (dataBlocks.get(pos) != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!mayHaveData(pos.getWorldName(), pos.getX(), pos.getZ())) {
+            publish(new LoadedChunk(pos));
             return CompletableFuture.completedFuture(null);
         }
-        CompletableFuture<Void> load = loading.get(pos);
-        if (load != null && !load.isDone()) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> load = loading.putIfAbsent(pos, future);
+        if (load != null) {
             return load;
         }
-        dataBlocks.put(pos, new HashMap<>());
-        load = backend.load(pos).thenApply(s -> {
-            if (s == null) {
-                loading.remove(pos);
-                return null;
+        long start = System.nanoTime();
+        backend.loadBytes(pos).whenComplete((data, e) -> {
+            if (e != null) {
+                loading.remove(pos, future);
+                future.completeExceptionally(e);
+                return;
             }
-            JSONMap map = JSONParser.parseMap(s);
-            map.keySet().forEach(k -> load(k, map.getMap(k), pos));
-            loading.remove(pos);
-            return null;
+            metrics.recordLoad(System.nanoTime() - start, data == null ? 0 : data.length);
+            LoadedChunk chunk = new LoadedChunk(pos);
+            if (data != null) {
+                decode(data, chunk);
+            }
+            boolean published;
+            synchronized (loading) {
+                published = loading.remove(pos, future) && publish(chunk);
+            }
+            if (published) {
+                checkBudget();
+            }
+            future.complete(null);
         });
-        loading.put(pos, load);
-        return load;
+        return future;
     }
 
-    private void load(String key, JSONMap map, ChunkPosition pos) {
-        String[] split = key.split(" ");
-        int x = Integer.parseInt(split[0]);
-        int y = Integer.parseInt(split[1]);
-        int z = Integer.parseInt(split[2]);
-        BlockPosition bPos = new BlockPosition(x, y, z);
-        DataBlock db = new DataBlock(map, bPos, pos.getWorldName(), this);
-        dataBlocks.get(pos).put(bPos, db);
+    /**
+     * Decodes a payload into a LoadedChunk which has not been published yet
+     */
+    private void decode(byte[] data, LoadedChunk chunk) {
+        ChunkPosition pos = chunk.getPosition();
+        int segments = BlockDataCodec.decode(data, pos, (bPos, map) -> {
+            chunk.put(LoadedChunk.offset(bPos.getX(), bPos.getY(), bPos.getZ()), new DataBlock(map, bPos, pos, this));
+        }, bPos -> {
+            chunk.remove(LoadedChunk.offset(bPos.getX(), bPos.getY(), bPos.getZ()));
+        });
+        chunk.setFullSaveRequired(BlockDataCodec.isLegacy(data));
+        chunk.setDeltaCount(Math.max(segments - 1, 0));
+    }
+
+    /**
+     * Makes a decoded chunk visible to readers and indexes its DataBlocks, unless a chunk was already published at
+     * the same position
+     */
+    private boolean publish(LoadedChunk chunk) {
+        // Indexed and counted first, so a concurrent unload of the published chunk always undoes both
+        loadedBlocks.addAndGet(chunk.size());
+        if (!indexes.isEmpty()) {
+            chunk.forEach(this::index);
+        }
+        if (dataBlocks.publish(chunk)) {
+            return true;
+        }
+        loadedBlocks.addAndGet(-chunk.size());
+        if (!indexes.isEmpty()) {
+            chunk.forEach(this::unindex);
+        }
+        return false;
     }
 
     /**
@@ -341,39 +716,317 @@ public class BlockDataManager {
      * @return The DataBlock, or null
      */
     public DataBlock getDataBlock(Block block, boolean create) {
+        String world = block.getWorld().getName();
+        LoadedChunk chunk = dataBlocks.get(world, block.getX() >> 4, block.getZ() >> 4);
+        if (chunk != null) {
+            return getDataBlock(chunk, block, create);
+        }
+        if (!create && !mayHaveData(world, block.getX() >> 4, block.getZ() >> 4)) {
+            return null;
+        }
         return unwrap(getDataBlockAsync(block, create));
     }
 
     /**
-     * Loads all DataBlocks stored by this BlockDataManager. Not supported for PDC.
+     * Loads all DataBlocks stored by this BlockDataManager. Not supported for PDC. If a memory budget is set with
+     * {@link #setMaxLoadedBlocks(long)}, chunks are only loaded until it is reached, and the rest are loaded on demand.
      *
      * @return A CompletableFuture for the loading task.
      */
     public CompletableFuture<Void> loadAll() {
         save();
-        loading.values().forEach(f -> f.cancel(true));
-        loading.clear();
+        synchronized (loading) {
+            loading.values().forEach(f -> f.cancel(true));
+            loading.clear();
+        }
         dataBlocks.clear();
-        return backend.loadAll().thenApply(chunkMap -> {
-            chunkMap.forEach((cPos, data) -> {
-                JSONMap chunkData = JSONParser.parseMap(data);
-                dataBlocks.computeIfAbsent(cPos, k -> new HashMap<>());
-                chunkData.keySet().forEach(bPos -> load(bPos, chunkData.getMap(bPos), cPos));
-            });
-            return null;
+        indexes.values().forEach(ValueIndex::clear);
+        loadedBlocks.set(0);
+        return backend.streamAllBytes((cPos, data) -> {
+            present.put(dataBlocks.key(cPos), true);
+            metrics.recordRead(data.length);
+            long max = maxLoadedBlocks;
+            if (max > 0 && loadedBlocks.get() >= max) {
+                return;
+            }
+            LoadedChunk chunk = new LoadedChunk(cPos);
+            decode(data, chunk);
+            publish(chunk);
+        });
+    }
+
+    /**
+     * Passes every DataBlock stored by this BlockDataManager to a consumer without keeping them loaded, so all
+     * stored data can be scanned without holding it in memory at once. DataBlocks in chunks which are already
+     * loaded are passed as-is, while the rest are detached copies, and changes made to them will not be saved.
+     * Not supported for PDC.
+     *
+     * @param consumer The operation to perform on each DataBlock, called from the backend's thread
+     * @return A CompletableFuture for the scanning task
+     */
+    public CompletableFuture<Void> forEachStored(Consumer<DataBlock> consumer) {
+        return backend.streamAllBytes((cPos, data) -> {
+            LoadedChunk chunk = dataBlocks.get(cPos);
+            if (chunk != null) {
+                chunk.forEach(consumer);
+                return;
+            }
+            BlockDataCodec.decode(data, cPos, (bPos, map) -> consumer.accept(new DataBlock(map, bPos, cPos, this)), bPos -> {});
         });
     }
 
+    /**
+     * Sets the memory budget for this BlockDataManager, as the maximum number of DataBlocks to keep loaded. Once it
+     * is exceeded, the least recently used chunks are saved and unloaded, except for those whose world chunk is
+     * loaded, until the number of loaded DataBlocks is 10% below the budget.
+     *
+     * @param maxLoadedBlocks The maximum number of DataBlocks to keep loaded, or 0 for no limit
+     */
+    public void setMaxLoadedBlocks(long maxLoadedBlocks) {
+        this.maxLoadedBlocks = maxLoadedBlocks;
+        checkBudget();
+    }
+
+    /**
+     * @return The maximum number of DataBlocks to keep loaded, or 0 if there is no limit
+     */
+    public long getMaxLoadedBlocks() {
+        return maxLoadedBlocks;
+    }
+
+    /**
+     * @return The number of DataBlocks currently loaded
+     */
+    public long getLoadedBlockCount() {
+        return loadedBlocks.get();
+    }
+
+    int getLoadedChunkCount() {
+        return dataBlocks.size();
+    }
+
+    int getModifiedChunkCount() {
+        return modified.size();
+    }
+
+    private void checkBudget() {
+        long max = maxLoadedBlocks;
+        if (max > 0 && loadedBlocks.get() > max && evictionScheduled.compareAndSet(false, true)) {
+            Task.syncDelayed(plugin, this::evict);
+        }
+    }
+
+    /**
+     * Evicts chunks until the number of loaded DataBlocks is 10% below the budget, probationary chunks first, each
+     * segment in order of least recent access. Chunks which survive are demoted, so they must be accessed again to
+     * stay protected. Must be called from the main thread, since saving PDC data requires it.
+     */
+    private void evict() {
+        evictionScheduled.set(false);
+        long max = maxLoadedBlocks;
+        if (max <= 0 || loadedBlocks.get() <= max) {
+            return;
+        }
+        long target = max - max / 10;
+        List<LoadedChunk> candidates = new ArrayList<>();
+        dataBlocks.forEach(c -> {
+            if (!isPinned(c.getPosition())) {
+                candidates.add(c);
+            }
+        });
+        candidates.sort(Comparator.comparing(LoadedChunk::isProtected).thenComparingLong(LoadedChunk::getLastAccess));
+        for (LoadedChunk chunk : candidates) {
+            if (loadedBlocks.get() <= target) {
+                chunk.demote();
+                continue;
+            }
+            unload(chunk.getPosition());
+        }
+    }
+
+    private boolean isPinned(ChunkPosition pos) {
+        World world = Bukkit.getWorld(pos.getWorldName());
+        return world != null && world.isChunkLoaded(pos.getX(), pos.getZ());
+    }
+
     /**
      * @return All DataBlocks currently loaded in this BlockDataManager
      */
     public Set<DataBlock> getAllLoaded() {
-        return dataBlocks.values().stream().flatMap(m -> m.values().stream()).collect(Collectors.toSet());
+        Set<DataBlock> set = new HashSet<>();
+        dataBlocks.forEach(c -> c.forEach(set::add));
+        return set;
+    }
+
+    /**
+     * Declares a key to be indexed, so that loaded DataBlocks can be looked up by their value for it with
+     * {@link #getIndexed(String, Object)}. Values are matched using equals, so indexed keys should hold simple
+     * values like Strings or numbers. Changes made directly to the map returned by {@link DataBlock#getData()}
+     * will not be reflected in the index.
+     *
+     * @param key The key to index
+     */
+    public void addIndex(String key) {
+        ValueIndex index = new ValueIndex(key);
+        if (indexes.putIfAbsent(key, index) != null) {
+            return;
+        }
+        dataBlocks.forEach(c -> c.forEach(db -> index.add(db, db.getObject(key))));
+    }
+
+    /**
+     * Gets all loaded DataBlocks which have a given value for an indexed key
+     *
+     * @param key   The key, which must have been declared with {@link #addIndex(String)}
+     * @param value The value to match
+     * @return An unmodifiable view of the matching DataBlocks
+     */
+    public Set<DataBlock> getIndexed(String key, Object value) {
+        ValueIndex index = indexes.get(key);
+        if (index == null) {
+            throw new IllegalArgumentException("Key '" + key + "' is not indexed");
+        }
+        return index.get(value);
+    }
+
+    /**
+     * Gets all loaded DataBlocks within a radius of a Location. Only chunks within the radius are checked.
+     *
+     * @param center The center to search around
+     * @param radius The radius to search in
+     * @return A set of the DataBlocks within the radius
+     */
+    public Set<DataBlock> getNearby(Location center, double radius) {
+        double radiusSquared = radius * radius;
+        double cx = center.getX();
+        double cy = center.getY();
+        double cz = center.getZ();
+        Set<DataBlock> set = new HashSet<>();
+        forEachInBox(center.getWorld().getName(),
+                (int) Math.floor(cx - radius) >> 4, (int) Math.floor(cz - radius) >> 4,
+                (int) Math.floor(cx + radius) >> 4, (int) Math.floor(cz + radius) >> 4, db -> {
+                    BlockPosition pos = db.getBlockPosition();
+                    double dx = pos.getX() + 0.5 - cx;
+                    double dy = pos.getY() + 0.5 - cy;
+                    double dz = pos.getZ() + 0.5 - cz;
+                    if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                        set.add(db);
+                    }
+                });
+        return set;
+    }
+
+    /**
+     * Gets all loaded DataBlocks within a Region. Only chunks overlapping the Region are checked.
+     *
+     * @param region The Region to search in
+     * @return A set of the DataBlocks within the Region
+     */
+    public Set<DataBlock> getInRegion(Region region) {
+        Location start = region.getStart();
+        Location end = region.getEnd();
+        World world = region.getWorld();
+        Location loc = new Location(world, 0, 0, 0);
+        Set<DataBlock> set = new HashSet<>();
+        forEachInBox(world.getName(), start.getBlockX() >> 4, start.getBlockZ() >> 4, end.getBlockX() >> 4, end.getBlockZ() >> 4, db -> {
+            BlockPosition pos = db.getBlockPosition();
+            loc.setX(pos.getX());
+            loc.setY(pos.getY());
+            loc.setZ(pos.getZ());
+            if (region.contains(loc)) {
+                set.add(db);
+            }
+        });
+        return set;
+    }
+
+    private void forEachInBox(String world, int minX, int minZ, int maxX, int maxZ, Consumer<DataBlock> consumer) {
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cz = minZ; cz <= maxZ; cz++) {
+                LoadedChunk chunk = dataBlocks.get(world, cx, cz);
+                if (chunk != null) {
+                    chunk.forEach(consumer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a schema for DataBlocks of a custom type, so the values of its fields are stored in primitive slots
+     * instead of the map of each DataBlock. The custom type of a DataBlock is its value for "custom-type", which is
+     * set by {@link redempt.redlib.blockdata.custom.CustomBlockType}. Loaded DataBlocks of the type are converted
+     * immediately, and no more fields can be added to the schema once it is registered.
+     *
+     * @param type   The custom type the schema applies to
+     * @param schema The schema
+     */
+    public void registerSchema(String type, DataBlockSchema schema) {
+        schema.freeze();
+        schemas.put(type, schema);
+        dataBlocks.forEach(c -> c.forEach(db -> {
+            if (type.equals(db.getObject("custom-type"))) {
+                db.refreshSchema();
+            }
+        }));
+    }
+
+    /**
+     * Gets the id for a custom type, assigning a new one if needed. Ids are small, sequential, only valid for this
+     * BlockDataManager, and are not persisted, so they can be used to index arrays of per-type information.
+     *
+     * @param type The custom type
+     * @return The id of the custom type
+     */
+    public int getTypeId(String type) {
+        Integer id = typeIds.get(type);
+        if (id == null) {
+            id = typeIds.computeIfAbsent(type, k -> nextTypeId.getAndIncrement());
+        }
+        return id;
+    }
+
+    DataBlockSchema getSchema(String type) {
+        return schemas.isEmpty() ? null : schemas.get(type);
+    }
+
+    boolean isIndexed(String key) {
+        return !indexes.isEmpty() && indexes.containsKey(key);
+    }
+
+    void index(DataBlock db) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        indexes.values().forEach(index -> index.add(db, db.getObject(index.getKey())));
+    }
+
+    void unindex(DataBlock db) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        indexes.values().forEach(index -> index.remove(db, db.getObject(index.getKey())));
+    }
+
+    void updateIndex(DataBlock db, String key, Object oldValue, Object newValue) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        ValueIndex index = indexes.get(key);
+        if (index != null) {
+            index.remove(db, oldValue);
+            index.add(db, newValue);
+        }
     }
 
     private <T> T unwrap(CompletableFuture<T> future) {
         try {
-            return future.get();
+            if (future.isDone()) {
+                return future.get();
+            }
+            long start = System.nanoTime();
+            T value = future.get();
+            metrics.recordWait(System.nanoTime() - start);
+            return value;
         } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
             return null;
@@ -0,0 +1,235 @@
+package redempt.redlib.blockdata;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for a single {@link BlockDataManager}, retrieved with
+ * {@link BlockDataManager#getMetrics()}. Counters are cheap to update from any thread, and the gauges for loaded and
+ * modified chunks are read from the manager when requested.
+ *
+ * @author Redempt
+ */
+public class BlockDataMetrics {
+
+    private BlockDataManager manager;
+    private String backend;
+    private Histogram loadTime = new Histogram();
+    private Histogram waitTime = new Histogram();
+    private LongAdder bytesRead = new LongAdder();
+    private LongAdder bytesWritten = new LongAdder();
+    private LongAdder chunksWritten = new LongAdder();
+    private LongAdder presenceHits = new LongAdder();
+    private LongAdder presenceMisses = new LongAdder();
+    private Map<String, LongAdder> waitsByThread = new ConcurrentHashMap<>();
+
+    BlockDataMetrics(BlockDataManager manager, String backend) {
+        this.manager = manager;
+        this.backend = backend;
+    }
+
+    void recordLoad(long nanos, int bytes) {
+        loadTime.record(nanos);
+        bytesRead.add(bytes);
+    }
+
+    void recordRead(int bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void recordWrite(int bytes) {
+        bytesWritten.add(bytes);
+        chunksWritten.increment();
+    }
+
+    void recordPresence(boolean hit) {
+        (hit ? presenceHits : presenceMisses).increment();
+    }
+
+    void recordWait(long nanos) {
+        waitTime.record(nanos);
+        waitsByThread.computeIfAbsent(Thread.currentThread().getName(), k -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return The simple class name of the backend the BlockDataManager uses
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return The histogram of times taken to load chunks from the backend
+     */
+    public Histogram getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * @return The histogram of times threads spent blocked waiting for the backend in synchronous calls
+     */
+    public Histogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * @return The number of times each thread has blocked waiting for the backend, by thread name
+     */
+    public Map<String, Long> getWaitsByThread() {
+        Map<String, Long> map = new ConcurrentHashMap<>();
+        waitsByThread.forEach((k, v) -> map.put(k, v.sum()));
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return The number of bytes read from the backend
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * @return The number of bytes written to the backend, including deltas
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return The number of chunk payloads or deltas written to the backend
+     */
+    public long getChunksWritten() {
+        return chunksWritten.sum();
+    }
+
+    /**
+     * @return The number of lookups the presence index answered without reading from the backend
+     */
+    public long getPresenceHits() {
+        return presenceHits.sum();
+    }
+
+    /**
+     * @return The number of lookups which had to read from the backend, either because the chunk has stored data or
+     * because the presence index was not available
+     */
+    public long getPresenceMisses() {
+        return presenceMisses.sum();
+    }
+
+    /**
+     * @return The number of chunks currently loaded
+     */
+    public long getLoadedChunks() {
+        return manager.getLoadedChunkCount();
+    }
+
+    /**
+     * @return The number of DataBlocks currently loaded
+     */
+    public long getLoadedBlocks() {
+        return manager.getLoadedBlockCount();
+    }
+
+    /**
+     * @return The number of modified chunks which have not been saved yet
+     */
+    public long getDirtyChunks() {
+        return manager.getModifiedChunkCount();
+    }
+
+    /**
+     * Resets all counters and histograms. Gauges are unaffected.
+     */
+    public void reset() {
+        loadTime.reset();
+        waitTime.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        chunksWritten.reset();
+        presenceHits.reset();
+        presenceMisses.reset();
+        waitsByThread.clear();
+    }
+
+    /**
+     * A histogram of durations with power-of-two nanosecond buckets
+     *
+     * @author Redempt
+     */
+    public static class Histogram {
+
+        private AtomicLongArray buckets = new AtomicLongArray(64);
+        private LongAdder count = new LongAdder();
+        private LongAdder total = new LongAdder();
+        private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 1);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+
+        /**
+         * @return The number of durations recorded
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return The mean of the recorded durations in milliseconds
+         */
+        public double getMeanMillis() {
+            long count = getCount();
+            return count == 0 ? 0 : total.sum() / (double) count / 1000000;
+        }
+
+        /**
+         * @return The longest recorded duration in milliseconds
+         */
+        public double getMaxMillis() {
+            return max.get() / 1000000d;
+        }
+
+        /**
+         * Estimates a percentile of the recorded durations. The result is the upper bound of the bucket the
+         * percentile falls in, so it may be up to twice the true value.
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return The estimated duration in milliseconds
+         */
+        public double getPercentileMillis(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(target, 1)) {
+                    return Math.min((double) (1L << i << 1), max.get()) / 1000000;
+                }
+            }
+            return getMaxMillis();
+        }
+
+    }
+
+}
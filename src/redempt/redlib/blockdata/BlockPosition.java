@@ -4,8 +4,6 @@ import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 
-import java.util.Objects;
-
 class BlockPosition {
 
     private final int x;
@@ -44,7 +42,7 @@ class BlockPosition {
 
     @Override
     public int hashCode() {
-        return Objects.hash(x, y, z);
+        return (31 * x + y) * 31 + z;
     }
 
     @Override
@@ -5,8 +5,6 @@ import org.bukkit.Chunk;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 
-import java.util.Objects;
-
 /**
  * Represents a world and chunk X and Z
  *
@@ -97,7 +95,7 @@ public class ChunkPosition {
 
     @Override
     public int hashCode() {
-        return Objects.hash(x, z, world);
+        return (31 * x + z) * 31 + world.hashCode();
     }
 
     @Override
@@ -0,0 +1,214 @@
+package redempt.redlib.blockdata;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * An open-addressing map from primitive long keys to values. Writes are serialized with a lock, while lookups use
+ * optimistic reads, so they neither lock nor allocate unless they race with a write.
+ *
+ * @param <V> The type of the values
+ * @author Redempt
+ */
+class ConcurrentLongMap<V> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private StampedLock lock = new StampedLock();
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private volatile int size;
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public V get(long key) {
+        long stamp = lock.tryOptimisticRead();
+        V value = find(key);
+        if (lock.validate(stamp)) {
+            return value;
+        }
+        stamp = lock.readLock();
+        try {
+            return find(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    private V find(long key) {
+        long[] keys = this.keys;
+        Object[] values = this.values;
+        if (keys.length != values.length) {
+            return null;
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (int probes = 0; probes < keys.length; probes++) {
+            Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (V) value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the value for a key, creating and inserting one if it is not present
+     *
+     * @param key      The key
+     * @param function The function to create the value with
+     * @return The value
+     */
+    public V computeIfAbsent(long key, LongFunction<V> function) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        long stamp = lock.writeLock();
+        try {
+            value = find(key);
+            if (value == null) {
+                value = function.apply(key);
+                insert(key, value);
+            }
+            return value;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void put(long key, V value) {
+        long stamp = lock.writeLock();
+        try {
+            insert(key, value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void insert(long key, Object value) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * 3 / 4) {
+            resize(keys.length * 2);
+        }
+    }
+
+    public V remove(long key) {
+        long stamp = lock.writeLock();
+        try {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            Object value;
+            while ((value = values[i]) != null) {
+                if (keys[i] == key) {
+                    shiftBack(i);
+                    size--;
+                    return (V) value;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void shiftBack(int gap) {
+        int mask = keys.length - 1;
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        long[] newKeys = new long[capacity];
+        Object[] newValues = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null) {
+                continue;
+            }
+            int i = hash(oldKeys[j]) & mask;
+            while (newValues[i] != null) {
+                i = (i + 1) & mask;
+            }
+            newKeys[i] = oldKeys[j];
+            newValues[i] = oldValues[j];
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            keys = new long[INITIAL_CAPACITY];
+            values = new Object[INITIAL_CAPACITY];
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Performs an operation on a snapshot of all values in this map
+     *
+     * @param consumer The operation to perform
+     */
+    public void forEachValue(Consumer<V> consumer) {
+        Object[] snapshot;
+        long stamp = lock.readLock();
+        try {
+            snapshot = values.clone();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (Object value : snapshot) {
+            if (value != null) {
+                consumer.accept((V) value);
+            }
+        }
+    }
+
+}
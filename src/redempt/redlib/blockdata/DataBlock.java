@@ -6,6 +6,7 @@ import redempt.redlib.json.JSONList;
 import redempt.redlib.json.JSONMap;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -16,17 +17,35 @@ import java.util.Set;
  */
 public class DataBlock {
 
+    private static final String TYPE_KEY = "custom-type";
+
     protected JSONMap data;
     private BlockDataManager manager;
     private BlockPosition block;
-    private String world;
+    private ChunkPosition chunk;
     private Map<String, Object> transientProperties;
+    private volatile boolean dirty;
+    private DataBlockSchema schema;
+    private long[] slots;
+    private long present;
+    private int typeId = -1;
 
-    DataBlock(JSONMap data, BlockPosition block, String world, BlockDataManager manager) {
+    DataBlock(JSONMap data, BlockPosition block, ChunkPosition chunk, BlockDataManager manager) {
         this.data = data;
         this.block = block;
         this.manager = manager;
-        this.world = world;
+        this.chunk = chunk;
+        applySchema();
+    }
+
+    /**
+     * Gets the id of the custom type of this DataBlock, as assigned by {@link BlockDataManager#getTypeId(String)}.
+     * Kept up to date whenever "custom-type" changes, so it can be compared without reading the map.
+     *
+     * @return The id of the custom type of this DataBlock, or -1 if it has none
+     */
+    public int getTypeId() {
+        return typeId;
     }
 
     /**
@@ -50,17 +69,235 @@ public class DataBlock {
      * @return The Block the data is attached to
      */
     public Block getBlock() {
-        return Bukkit.getWorld(world).getBlockAt(block.getX(), block.getY(), block.getZ());
+        return Bukkit.getWorld(chunk.getWorldName()).getBlockAt(block.getX(), block.getY(), block.getZ());
     }
 
     protected ChunkPosition getChunkPosition() {
-        return new ChunkPosition(block, world);
+        return chunk;
     }
 
     protected BlockPosition getBlockPosition() {
         return block;
     }
 
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    void markModified() {
+        dirty = true;
+        manager.setModified(chunk);
+    }
+
+    void setData(JSONMap data) {
+        manager.unindex(this);
+        this.data = data;
+        schema = null;
+        slots = null;
+        present = 0;
+        applySchema();
+        manager.index(this);
+        markModified();
+    }
+
+    /**
+     * Switches to the schema registered for the custom type of this DataBlock, moving the values of its fields
+     * between the map and the primitive slots as needed
+     */
+    void applySchema() {
+        Object type = data.get(TYPE_KEY);
+        typeId = type instanceof String ? manager.getTypeId((String) type) : -1;
+        DataBlockSchema next = type instanceof String ? manager.getSchema((String) type) : null;
+        if (next == schema) {
+            return;
+        }
+        if (schema != null) {
+            for (int i = 0; i < slots.length; i++) {
+                if (has(i)) {
+                    data.put(schema.getName(i), schema.fromBits(i, slots[i]));
+                }
+            }
+        }
+        schema = next;
+        present = 0;
+        if (next == null) {
+            slots = null;
+            return;
+        }
+        slots = new long[next.size()];
+        for (int i = 0; i < slots.length; i++) {
+            String name = next.getName(i);
+            Object value = data.get(name);
+            if (value != null && next.accepts(i, value)) {
+                data.remove(name);
+                slots[i] = next.toBits(i, value);
+                present |= 1L << i;
+            }
+        }
+    }
+
+    /**
+     * Re-applies the schema for this DataBlock, keeping indexes consistent
+     */
+    void refreshSchema() {
+        manager.unindex(this);
+        applySchema();
+        manager.index(this);
+    }
+
+    /**
+     * @return The bits stored in the primitive slots of this DataBlock, or null if it has no schema
+     */
+    long[] getSlots() {
+        return slots;
+    }
+
+    /**
+     * @return A bitmask of which primitive slots of this DataBlock have values
+     */
+    long getPresentMask() {
+        return present;
+    }
+
+    /**
+     * Creates a map of all data in this DataBlock, including the values of schema fields
+     *
+     * @return The map, which may be the backing map of this DataBlock if it has no schema
+     */
+    JSONMap toJSONMap() {
+        if (schema == null) {
+            return data;
+        }
+        JSONMap map = new JSONMap();
+        map.putAll(data);
+        for (int i = 0; i < slots.length; i++) {
+            if (has(i)) {
+                map.put(schema.getName(i), schema.fromBits(i, slots[i]));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return The schema of this DataBlock, registered for its custom type, or null if it has none
+     */
+    public DataBlockSchema getSchema() {
+        return schema;
+    }
+
+    private int slot(String key) {
+        return schema == null ? -1 : schema.getIndex(key);
+    }
+
+    /**
+     * Checks whether a schema field has a value
+     *
+     * @param index The index of the field in the schema
+     * @return Whether the field has a value
+     */
+    public boolean has(int index) {
+        return (present >>> index & 1) != 0;
+    }
+
+    /**
+     * Gets the value of an int schema field without boxing
+     *
+     * @param index The index of the field in the schema
+     * @return The value of the field, or 0 if it has none
+     */
+    public int getInt(int index) {
+        return (int) slots[index];
+    }
+
+    /**
+     * Gets the value of a long schema field without boxing
+     *
+     * @param index The index of the field in the schema
+     * @return The value of the field, or 0 if it has none
+     */
+    public long getLong(int index) {
+        return slots[index];
+    }
+
+    /**
+     * Gets the value of a double schema field without boxing
+     *
+     * @param index The index of the field in the schema
+     * @return The value of the field, or 0 if it has none
+     */
+    public double getDouble(int index) {
+        return Double.longBitsToDouble(slots[index]);
+    }
+
+    /**
+     * Gets the value of a boolean schema field without boxing
+     *
+     * @param index The index of the field in the schema
+     * @return The value of the field, or false if it has none
+     */
+    public boolean getBoolean(int index) {
+        return slots[index] != 0;
+    }
+
+    /**
+     * Sets the value of an int schema field without boxing
+     *
+     * @param index The index of the field in the schema
+     * @param value The value to set
+     */
+    public void setInt(int index, int value) {
+        setSlot(index, value);
+    }
+
+    /**
+     * Sets the value of a long schema field without boxing
+     *
+     * @param index The index of the field in the schema
+     * @param value The value to set
+     */
+    public void setLong(int index, long value) {
+        setSlot(index, value);
+    }
+
+    /**
+     * Sets the value of a double schema field without boxing
+     *
+     * @param index The index of the field in the schema
+     * @param value The value to set
+     */
+    public void setDouble(int index, double value) {
+        setSlot(index, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Sets the value of a boolean schema field without boxing
+     *
+     * @param index The index of the field in the schema
+     * @param value The value to set
+     */
+    public void setBoolean(int index, boolean value) {
+        setSlot(index, value ? 1 : 0);
+    }
+
+    private void setSlot(int index, long bits) {
+        if (schema == null) {
+            throw new IllegalStateException("This DataBlock has no schema");
+        }
+        markModified();
+        String name = schema.getName(index);
+        boolean indexed = manager.isIndexed(name);
+        Object old = indexed ? getObject(name) : null;
+        slots[index] = bits;
+        present |= 1L << index;
+        if (indexed) {
+            manager.updateIndex(this, name, old, schema.fromBits(index, bits));
+        }
+    }
+
     /**
      * Gets an object by key
      *
@@ -68,6 +305,10 @@ public class DataBlock {
      * @return The data as an Object
      */
     public Object getObject(String key) {
+        int index = slot(key);
+        if (index >= 0 && has(index)) {
+            return schema.fromBits(index, slots[index]);
+        }
         return data.get(key);
     }
 
@@ -88,6 +329,10 @@ public class DataBlock {
      * @return The data as an Integer
      */
     public Integer getInt(String key) {
+        int index = slot(key);
+        if (index >= 0 && has(index)) {
+            return ((Number) schema.fromBits(index, slots[index])).intValue();
+        }
         return data.getInt(key);
     }
 
@@ -98,6 +343,10 @@ public class DataBlock {
      * @return The data as a Long
      */
     public Long getLong(String key) {
+        int index = slot(key);
+        if (index >= 0 && has(index)) {
+            return ((Number) schema.fromBits(index, slots[index])).longValue();
+        }
         return data.getLong(key);
     }
 
@@ -108,6 +357,10 @@ public class DataBlock {
      * @return The data as a Double
      */
     public Double getDouble(String key) {
+        int index = slot(key);
+        if (index >= 0 && has(index)) {
+            return ((Number) schema.fromBits(index, slots[index])).doubleValue();
+        }
         return data.getDouble(key);
     }
 
@@ -118,6 +371,10 @@ public class DataBlock {
      * @return The data as a Boolean
      */
     public Boolean getBoolean(String key) {
+        int index = slot(key);
+        if (index >= 0 && has(index)) {
+            return (Boolean) schema.fromBits(index, slots[index]);
+        }
         return data.getBoolean(key);
     }
 
@@ -148,29 +405,52 @@ public class DataBlock {
      * @return Whether the key is used
      */
     public boolean contains(String key) {
-        return data.containsKey(key);
+        int index = slot(key);
+        return (index >= 0 && has(index)) || data.containsKey(key);
     }
 
     /**
      * Clears all data from this DataBlock
      */
     public void clear() {
+        markModified();
+        manager.unindex(this);
         data.clear();
+        schema = null;
+        slots = null;
+        present = 0;
+        typeId = -1;
     }
 
     /**
-     * Sets data in this DataBlock
+     * Sets data in this DataBlock. Values for fields declared in the schema for this DataBlock's custom type are
+     * stored in primitive slots, and must be Numbers or Booleans matching the type of the field.
      *
      * @param key   The key to set the data with
      * @param value The data
      */
     public void set(String key, Object value) {
-        manager.setModified(new ChunkPosition(block, world));
-        if (value == null) {
+        int index = slot(key);
+        if (index >= 0) {
+            long bits = value == null ? 0 : schema.toBits(index, value);
+            markModified();
+            Object old = getObject(key);
             data.remove(key);
+            slots[index] = bits;
+            if (value == null) {
+                present &= ~(1L << index);
+            } else {
+                present |= 1L << index;
+            }
+            manager.updateIndex(this, key, old, value == null ? null : schema.fromBits(index, bits));
             return;
         }
-        data.put(key, value);
+        markModified();
+        Object old = value == null ? data.remove(key) : data.put(key, value);
+        manager.updateIndex(this, key, old, value);
+        if (key.equals(TYPE_KEY)) {
+            refreshSchema();
+        }
     }
 
     /**
@@ -183,7 +463,8 @@ public class DataBlock {
     }
 
     /**
-     * @return All data stored in this DataBlock
+     * @return All data stored in this DataBlock, except for the values of schema fields. Changes made directly to
+     * this map are not tracked, so use {@link #set(String, Object)} to make sure they are saved.
      */
     public Map<String, Object> getData() {
         return data;
@@ -193,7 +474,16 @@ public class DataBlock {
      * @return All keys used in this DataBlock
      */
     public Set<String> getKeys() {
-        return data.keySet();
+        if (schema == null || present == 0) {
+            return data.keySet();
+        }
+        Set<String> keys = new HashSet<>(data.keySet());
+        for (int i = 0; i < slots.length; i++) {
+            if (has(i)) {
+                keys.add(schema.getName(i));
+            }
+        }
+        return keys;
     }
 
 }
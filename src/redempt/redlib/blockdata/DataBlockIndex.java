@@ -0,0 +1,102 @@
+package redempt.redlib.blockdata;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Maps loaded chunks by a packed long key made from an interned world id and the chunk coordinates. Lookups use
+ * optimistic reads, so they neither lock nor allocate unless they race with a write.
+ *
+ * @author Redempt
+ */
+class DataBlockIndex {
+
+    private static final int COORD_BITS = 24;
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+
+    private Map<String, Integer> worldIds = new ConcurrentHashMap<>();
+    private AtomicInteger nextWorldId = new AtomicInteger();
+    private ConcurrentLongMap<LoadedChunk> chunks = new ConcurrentLongMap<>();
+
+    /**
+     * Gets the interned id for a world name, assigning a new one if needed
+     *
+     * @param world The name of the world
+     * @return The id of the world
+     */
+    public int getWorldId(String world) {
+        Integer id = worldIds.get(world);
+        if (id == null) {
+            id = worldIds.computeIfAbsent(world, k -> {
+                int next = nextWorldId.getAndIncrement();
+                if (next > 0xFFFF) {
+                    throw new IllegalStateException("Too many worlds to index block data");
+                }
+                return next;
+            });
+        }
+        return id;
+    }
+
+    /**
+     * Packs a world and chunk coordinates into a key
+     *
+     * @param world The name of the world
+     * @param cx    The chunk X
+     * @param cz    The chunk Z
+     * @return The packed key
+     */
+    public long key(String world, int cx, int cz) {
+        return ((long) getWorldId(world) << (COORD_BITS * 2)) | ((cx & COORD_MASK) << COORD_BITS) | (cz & COORD_MASK);
+    }
+
+    public long key(ChunkPosition pos) {
+        return key(pos.getWorldName(), pos.getX(), pos.getZ());
+    }
+
+    public LoadedChunk get(String world, int cx, int cz) {
+        return chunks.get(key(world, cx, cz));
+    }
+
+    public LoadedChunk get(ChunkPosition pos) {
+        return chunks.get(key(pos));
+    }
+
+    public LoadedChunk get(long key) {
+        return chunks.get(key);
+    }
+
+    /**
+     * Publishes a fully loaded chunk, unless another chunk is already present at its position
+     *
+     * @param chunk The LoadedChunk
+     * @return Whether the chunk was published
+     */
+    public boolean publish(LoadedChunk chunk) {
+        return chunks.computeIfAbsent(key(chunk.getPosition()), k -> chunk) == chunk;
+    }
+
+    public LoadedChunk remove(ChunkPosition pos) {
+        return chunks.remove(key(pos));
+    }
+
+    public void clear() {
+        chunks.clear();
+    }
+
+    public int size() {
+        return chunks.size();
+    }
+
+    /**
+     * Performs an operation on a snapshot of all loaded chunks
+     *
+     * @param consumer The operation to perform
+     */
+    public void forEach(Consumer<LoadedChunk> consumer) {
+        chunks.forEachValue(consumer);
+    }
+
+}
@@ -0,0 +1,169 @@
+package redempt.redlib.blockdata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declares typed fields for DataBlocks of a given custom type. Values for these fields are stored in a primitive
+ * array on each DataBlock rather than in its map, and can be accessed by index without boxing. Register a schema
+ * with {@link BlockDataManager#registerSchema(String, DataBlockSchema)}.
+ *
+ * @author Redempt
+ */
+public class DataBlockSchema {
+
+    /**
+     * The maximum number of fields a schema can declare
+     */
+    public static final int MAX_FIELDS = 64;
+
+    private Map<String, Integer> indexes = new HashMap<>();
+    private List<String> names = new ArrayList<>();
+    private List<FieldType> types = new ArrayList<>();
+    private volatile boolean frozen;
+
+    /**
+     * Declares a typed field in this schema. Fields can only be added before the schema is registered.
+     *
+     * @param name The key of the field
+     * @param type The type of the field
+     * @return This DataBlockSchema
+     */
+    public DataBlockSchema addField(String name, FieldType type) {
+        if (frozen) {
+            throw new IllegalStateException("Fields cannot be added to a schema after it has been registered");
+        }
+        if (indexes.containsKey(name)) {
+            throw new IllegalArgumentException("Field '" + name + "' is already declared");
+        }
+        if (names.size() >= MAX_FIELDS) {
+            throw new IllegalStateException("A schema cannot declare more than " + MAX_FIELDS + " fields");
+        }
+        indexes.put(name, names.size());
+        names.add(name);
+        types.add(type);
+        return this;
+    }
+
+    /**
+     * Prevents any more fields from being added, since DataBlocks using this schema size their slots to it
+     */
+    void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * Gets the index of a field, which can be used with the index-based accessors on {@link DataBlock}
+     *
+     * @param name The key of the field
+     * @return The index of the field, or -1 if it is not declared
+     */
+    public int getIndex(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @param index The index of a field
+     * @return The key of the field
+     */
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * @param index The index of a field
+     * @return The type of the field
+     */
+    public FieldType getType(int index) {
+        return types.get(index);
+    }
+
+    /**
+     * @return The number of fields declared in this schema
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Checks whether a value can be stored in a field
+     *
+     * @param index The index of the field
+     * @param value The value
+     * @return Whether the value is a Boolean for a boolean field, a Number for a double field, or an integral Number
+     * which fits in the field for an int or long field
+     */
+    boolean accepts(int index, Object value) {
+        switch (types.get(index)) {
+            case BOOLEAN:
+                return value instanceof Boolean;
+            case DOUBLE:
+                return value instanceof Number;
+            case INT:
+                return isIntegral(value) && ((Number) value).longValue() == ((Number) value).intValue();
+            default:
+                return isIntegral(value);
+        }
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Converts a value to the bits stored for a field
+     *
+     * @param index The index of the field
+     * @param value The value, which must be accepted by {@link #accepts(int, Object)}
+     * @return The bits to store
+     */
+    long toBits(int index, Object value) {
+        if (!accepts(index, value)) {
+            throw new IllegalArgumentException("Value " + value + " is not valid for " + types.get(index) + " field '" + names.get(index) + "'");
+        }
+        switch (types.get(index)) {
+            case BOOLEAN:
+                return (Boolean) value ? 1 : 0;
+            case DOUBLE:
+                return Double.doubleToRawLongBits(((Number) value).doubleValue());
+            default:
+                return ((Number) value).longValue();
+        }
+    }
+
+    /**
+     * Converts the bits stored for a field to a boxed value
+     *
+     * @param index The index of the field
+     * @param bits  The stored bits
+     * @return The boxed value
+     */
+    Object fromBits(int index, long bits) {
+        switch (types.get(index)) {
+            case INT:
+                return (int) bits;
+            case LONG:
+                return bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return bits != 0;
+        }
+    }
+
+    /**
+     * The types of fields which can be declared in a schema
+     */
+    public enum FieldType {
+
+        INT,
+        LONG,
+        DOUBLE,
+        BOOLEAN
+
+    }
+
+}
@@ -0,0 +1,350 @@
+package redempt.redlib.blockdata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Holds the loaded DataBlocks of a single chunk in an open-addressing map keyed by the packed offset of each
+ * block within the chunk, so lookups neither box nor allocate. Writes are serialized with a per-chunk lock and
+ * lookups use optimistic reads, while iteration works on a snapshot, so a chunk can be read and iterated from any
+ * thread while the main thread modifies it. A LoadedChunk is only published to the index once it is fully decoded.
+ *
+ * @author Redempt
+ */
+class LoadedChunk {
+
+    private final ChunkPosition pos;
+    private final StampedLock lock = new StampedLock();
+    private int[] keys;
+    private DataBlock[] values;
+    private volatile int size;
+    private int[] removed = new int[0];
+    private int removedCount;
+    private int deltaCount;
+    private boolean fullSaveRequired = true;
+    private long lastAccess = System.nanoTime();
+    private int hits;
+
+    public LoadedChunk(ChunkPosition pos) {
+        this.pos = pos;
+        keys = new int[8];
+        values = new DataBlock[8];
+    }
+
+    /**
+     * Packs a block position into its offset within its chunk
+     *
+     * @param x The block X
+     * @param y The block Y
+     * @param z The block Z
+     * @return The packed offset
+     */
+    public static int offset(int x, int y, int z) {
+        return BlockDataCodec.packOffset(x, y, z);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The position of this chunk
+     */
+    public ChunkPosition getPosition() {
+        return pos;
+    }
+
+    /**
+     * Records an access to this chunk for eviction. A chunk accessed again after it was loaded or last demoted is
+     * promoted to the protected segment, and is only evicted once no probationary chunks are left.
+     */
+    public void touch() {
+        lastAccess = System.nanoTime();
+        if (hits < 2) {
+            hits++;
+        }
+    }
+
+    /**
+     * Moves this chunk back to the probationary segment, so it must be accessed again to stay protected
+     */
+    public void demote() {
+        hits = Math.min(hits, 1);
+    }
+
+    /**
+     * @return Whether this chunk is in the protected segment
+     */
+    public boolean isProtected() {
+        return hits >= 2;
+    }
+
+    /**
+     * @return The value of {@link System#nanoTime()} when this chunk was last accessed
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * @return Whether the next save of this chunk must rewrite it completely rather than appending a delta
+     */
+    public boolean isFullSaveRequired() {
+        return fullSaveRequired;
+    }
+
+    public void setFullSaveRequired(boolean fullSaveRequired) {
+        this.fullSaveRequired = fullSaveRequired;
+    }
+
+    /**
+     * @return The number of deltas stored for this chunk since it was last saved completely
+     */
+    public int getDeltaCount() {
+        return deltaCount;
+    }
+
+    public void setDeltaCount(int deltaCount) {
+        this.deltaCount = deltaCount;
+    }
+
+    /**
+     * Records that a block was removed since the last save
+     *
+     * @param offset The packed offset of the removed block
+     */
+    public void markRemoved(int offset) {
+        long stamp = lock.writeLock();
+        try {
+            if (removedCount == removed.length) {
+                removed = Arrays.copyOf(removed, Math.max(4, removedCount * 2));
+            }
+            removed[removedCount++] = offset;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Takes the packed offsets of the blocks removed since the last save, and forgets them
+     *
+     * @return The packed offsets of the removed blocks
+     */
+    public int[] takeRemoved() {
+        long stamp = lock.writeLock();
+        try {
+            int[] taken = Arrays.copyOf(removed, removedCount);
+            removed = new int[0];
+            removedCount = 0;
+            return taken;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Takes all DataBlocks in this chunk which have changed since the last save, clearing the dirty flag of each one
+     * as it is taken. A block modified after it was taken is marked dirty again and saved next time.
+     *
+     * @return A new list containing the DataBlocks which had changed
+     */
+    public List<DataBlock> takeDirty() {
+        List<DataBlock> list = new ArrayList<>();
+        for (DataBlock db : snapshot()) {
+            if (db.isDirty()) {
+                db.setDirty(false);
+                list.add(db);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Clears the dirty flags of all DataBlocks and the removed blocks recorded in this chunk. Must be called before
+     * the chunk is encoded, so changes made while it is encoded stay dirty.
+     */
+    public void clearChanges() {
+        forEach(db -> db.setDirty(false));
+        long stamp = lock.writeLock();
+        try {
+            removed = new int[0];
+            removedCount = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public DataBlock get(int x, int y, int z) {
+        return get(offset(x, y, z));
+    }
+
+    public DataBlock get(int offset) {
+        long stamp = lock.tryOptimisticRead();
+        DataBlock value = find(offset);
+        if (lock.validate(stamp)) {
+            return value;
+        }
+        stamp = lock.readLock();
+        try {
+            return find(offset);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private DataBlock find(int offset) {
+        int[] keys = this.keys;
+        DataBlock[] values = this.values;
+        if (keys.length != values.length) {
+            return null;
+        }
+        int mask = keys.length - 1;
+        int i = hash(offset) & mask;
+        for (int probes = 0; probes < keys.length; probes++) {
+            DataBlock value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == offset) {
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public DataBlock put(int offset, DataBlock db) {
+        long stamp = lock.writeLock();
+        try {
+            return insert(offset, db);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private DataBlock insert(int offset, DataBlock db) {
+        int mask = keys.length - 1;
+        int i = hash(offset) & mask;
+        DataBlock value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == offset) {
+                values[i] = db;
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = offset;
+        values[i] = db;
+        if (++size > keys.length * 3 / 4) {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+    public DataBlock remove(int offset) {
+        long stamp = lock.writeLock();
+        try {
+            return delete(offset);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private DataBlock delete(int offset) {
+        int mask = keys.length - 1;
+        int i = hash(offset) & mask;
+        DataBlock value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == offset) {
+                shiftBack(i);
+                size--;
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private void shiftBack(int gap) {
+        int mask = keys.length - 1;
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        DataBlock[] oldValues = values;
+        keys = new int[capacity];
+        values = new DataBlock[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null) {
+                continue;
+            }
+            int i = hash(oldKeys[j]) & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * Copies the DataBlocks in this chunk into a new array, so they can be iterated without holding the lock
+     */
+    private DataBlock[] snapshot() {
+        long stamp = lock.readLock();
+        try {
+            DataBlock[] snapshot = new DataBlock[size];
+            int i = 0;
+            for (DataBlock db : values) {
+                if (db != null) {
+                    snapshot[i++] = db;
+                }
+            }
+            return snapshot;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Performs an operation on a snapshot of the DataBlocks in this chunk. The operation may modify this chunk.
+     *
+     * @param consumer The operation to perform
+     */
+    public void forEach(Consumer<DataBlock> consumer) {
+        for (DataBlock db : snapshot()) {
+            consumer.accept(db);
+        }
+    }
+
+    /**
+     * @return A new list containing all DataBlocks in this chunk
+     */
+    public List<DataBlock> values() {
+        return new ArrayList<>(Arrays.asList(snapshot()));
+    }
+
+}
@@ -0,0 +1,67 @@
+package redempt.redlib.blockdata;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes loaded DataBlocks by the value they have for a single key
+ *
+ * @author Redempt
+ */
+class ValueIndex {
+
+    private String key;
+    private Map<Object, Set<DataBlock>> blocks = new ConcurrentHashMap<>();
+
+    public ValueIndex(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return The key this index is for
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public void add(DataBlock db, Object value) {
+        if (value == null) {
+            return;
+        }
+        blocks.compute(value, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(db);
+            return set;
+        });
+    }
+
+    public void remove(DataBlock db, Object value) {
+        if (value == null) {
+            return;
+        }
+        blocks.computeIfPresent(value, (k, set) -> {
+            set.remove(db);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * Gets the DataBlocks which have a given value for this index's key
+     *
+     * @param value The value
+     * @return An unmodifiable view of the matching DataBlocks
+     */
+    public Set<DataBlock> get(Object value) {
+        Set<DataBlock> set = blocks.get(value);
+        return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+    }
+
+    public void clear() {
+        blocks.clear();
+    }
+
+}
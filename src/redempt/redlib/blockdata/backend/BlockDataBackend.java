@@ -4,8 +4,12 @@ import org.bukkit.plugin.Plugin;
 import redempt.redlib.blockdata.BlockDataManager;
 import redempt.redlib.blockdata.ChunkPosition;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -35,6 +39,40 @@ public interface BlockDataBackend {
         return new SQLiteBackend(path);
     }
 
+    /**
+     * Creates a new BlockDataBackend backed by SQLite, optionally compressing the rows it writes. Compressed and
+     * uncompressed rows can be read either way, so compression can be enabled for an existing database.
+     *
+     * @param path     The path to the SQLite database
+     * @param compress Whether to compress chunk data before writing it
+     * @return The BlockDataBackend
+     */
+    public static BlockDataBackend sqlite(Path path, boolean compress) {
+        return new SQLiteBackend(path, compress);
+    }
+
+    /**
+     * Creates a new BlockDataBackend backed by append-only region files
+     *
+     * @param directory The directory to store the region files in
+     * @return The BlockDataBackend
+     */
+    public static BlockDataBackend regionFile(Path directory) {
+        return new RegionFileBackend(directory, null);
+    }
+
+    /**
+     * Creates a new BlockDataBackend backed by append-only region files, which can migrate data from an existing
+     * SQLite database with {@link BlockDataManager#migrate()}
+     *
+     * @param directory   The directory to store the region files in
+     * @param migrateFrom The path to the SQLite database to migrate data from
+     * @return The BlockDataBackend
+     */
+    public static BlockDataBackend regionFile(Path directory, Path migrateFrom) {
+        return new RegionFileBackend(directory, migrateFrom);
+    }
+
     /**
      * Loads the String data for a given chunk
      *
@@ -52,6 +90,56 @@ public interface BlockDataBackend {
      */
     public CompletableFuture<Void> save(ChunkPosition pos, String data);
 
+    /**
+     * Loads the binary data for a given chunk. The default implementation wraps {@link #load(ChunkPosition)},
+     * so backends which can store binary data natively should override it.
+     *
+     * @param pos The location of the chunk
+     * @return A CompletableFuture with the binary data, or null if there is none
+     */
+    public default CompletableFuture<byte[]> loadBytes(ChunkPosition pos) {
+        return load(pos).thenApply(BlockDataBackend::toBytes);
+    }
+
+    /**
+     * Saves binary data for a given chunk. The default implementation wraps {@link #save(ChunkPosition, String)},
+     * so backends which can store binary data natively should override it.
+     *
+     * @param pos  The location of the chunk
+     * @param data The data to save
+     * @return A CompletableFuture for the saving task
+     */
+    public default CompletableFuture<Void> saveBytes(ChunkPosition pos, byte[] data) {
+        return save(pos, new String(data, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * @return Whether this backend must only be accessed from the main thread
+     */
+    public default boolean requiresMainThread() {
+        return false;
+    }
+
+    /**
+     * @return Whether this backend can append deltas to the data stored for a chunk with {@link #appendBytes(ChunkPosition, byte[])}
+     */
+    public default boolean supportsDeltas() {
+        return false;
+    }
+
+    /**
+     * Appends a delta to the binary data stored for a given chunk. The data returned by {@link #loadBytes(ChunkPosition)}
+     * must be the data last saved for the chunk followed by every delta appended since, in order. Saving or removing
+     * the data for a chunk discards its deltas. Only supported if {@link #supportsDeltas()} returns true.
+     *
+     * @param pos   The location of the chunk
+     * @param delta The delta to append
+     * @return A CompletableFuture for the appending task
+     */
+    public default CompletableFuture<Void> appendBytes(ChunkPosition pos, byte[] delta) {
+        throw new UnsupportedOperationException("This backend does not support deltas");
+    }
+
     /**
      * Removes the data attached to a given chunk
      *
@@ -81,6 +169,63 @@ public interface BlockDataBackend {
      */
     public CompletableFuture<Map<ChunkPosition, String>> loadAll();
 
+    /**
+     * Attempts to load all binary data stored in the backend, not supported by PDC. The default implementation
+     * wraps {@link #loadAll()}, so backends which can store binary data natively should override it.
+     *
+     * @return A CompletableFuture with all the data
+     */
+    public default CompletableFuture<Map<ChunkPosition, byte[]>> loadAllBytes() {
+        return loadAll().thenApply(all -> {
+            Map<ChunkPosition, byte[]> map = new HashMap<>();
+            all.forEach((pos, data) -> map.put(pos, toBytes(data)));
+            return map;
+        });
+    }
+
+    /**
+     * Passes the binary data of every chunk stored in the backend to a consumer, not supported by PDC. Backends which
+     * can read their chunks one at a time should override this, since the default implementation wraps
+     * {@link #loadAllBytes()} and so holds all the data in memory at once.
+     *
+     * @param consumer The consumer to pass each chunk's position and data to
+     * @return A CompletableFuture for the scanning task
+     */
+    public default CompletableFuture<Void> streamAllBytes(BiConsumer<ChunkPosition, byte[]> consumer) {
+        return loadAllBytes().thenAccept(all -> all.forEach(consumer));
+    }
+
+    /**
+     * Lists the positions of all chunks which have data stored in the backend, without loading the data itself.
+     * The default implementation completes with null, meaning the backend cannot list its chunks.
+     *
+     * @return A CompletableFuture with the positions of all chunks with stored data, or null if not supported
+     */
+    public default CompletableFuture<Set<ChunkPosition>> loadKeys() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return The number of chunk writes which have been queued but not yet written, or 0 if this backend does not queue writes
+     */
+    public default int getQueuedWrites() {
+        return 0;
+    }
+
+    /**
+     * @return The time in nanoseconds the most recent flush of queued writes took, or 0 if this backend does not queue writes
+     */
+    public default long getLastFlushTime() {
+        return 0;
+    }
+
+    /**
+     * @return The average time in nanoseconds flushes of queued writes have taken, or 0 if this backend does not queue writes
+     */
+    public default long getAverageFlushTime() {
+        return 0;
+    }
+
     /**
      * Attempts to migrate SQLite from an older schema used by the previous BlockDataManager library
      *
@@ -89,4 +234,34 @@ public interface BlockDataBackend {
      */
     public boolean attemptMigration(BlockDataManager manager);
 
+    /**
+     * Converts String data stored by a backend without native binary support back to bytes. Legacy JSON data is
+     * encoded as UTF-8, while binary data written through {@link #saveBytes(ChunkPosition, byte[])} maps each
+     * character back to a single byte.
+     *
+     * @param data The String data
+     * @return The binary data
+     */
+    public static byte[] toBytes(String data) {
+        if (data == null) {
+            return null;
+        }
+        return data.getBytes(data.startsWith("{") ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Converts binary data to String data for backends which store bytes natively, the inverse of
+     * {@link #toBytes(String)}. Legacy JSON data is decoded as UTF-8, while binary data maps each byte to a single
+     * character.
+     *
+     * @param data The binary data
+     * @return The String data
+     */
+    public static String fromBytes(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        return new String(data, data.length > 0 && data[0] == '{' ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+
 }
@@ -0,0 +1,359 @@
+package redempt.redlib.blockdata.backend;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import redempt.redlib.blockdata.BlockDataManager;
+import redempt.redlib.blockdata.ChunkPosition;
+import redempt.redlib.misc.Task;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Copies all chunk data from one BlockDataBackend to another. Chunks are grouped by world and 32x32 chunk region,
+ * and several groups are copied in parallel, each with a bounded number of chunks being read at once. Writes are
+ * queued and each group waits for them once, so memory use stays bounded by the size of a region group. Completed
+ * groups are recorded in an optional checkpoint file, so an interrupted migration can be resumed by running it again
+ * with the same checkpoint. A migration cannot be started while a BlockDataManager using the destination backend
+ * is open. Data should be saved and the BlockDataManagers using the source backend should not be modifying data
+ * while a migration runs.
+ *
+ * @author Redempt
+ */
+public class BlockDataMigration {
+
+    /**
+     * Creates a migration between two backends
+     *
+     * @param from The backend to copy data from
+     * @param to   The backend to copy data to
+     * @return The BlockDataMigration
+     */
+    public static BlockDataMigration create(BlockDataBackend from, BlockDataBackend to) {
+        return new BlockDataMigration(from, to);
+    }
+
+    private BlockDataBackend from;
+    private BlockDataBackend to;
+    private Plugin plugin;
+    private int parallelism = 4;
+    private int chunksInFlight = 16;
+    private Path checkpoint;
+    private BiConsumer<Long, Long> progressListener;
+    private AtomicLong migrated = new AtomicLong();
+    private volatile long total;
+    private BufferedWriter checkpointWriter;
+
+    private BlockDataMigration(BlockDataBackend from, BlockDataBackend to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Sets the plugin used to schedule tasks on the main thread. Required if either backend must be accessed from
+     * the main thread, like PDC, or if the source backend cannot list its chunks.
+     *
+     * @param plugin The plugin
+     * @return This BlockDataMigration
+     */
+    public BlockDataMigration setPlugin(Plugin plugin) {
+        this.plugin = plugin;
+        return this;
+    }
+
+    /**
+     * Sets how many region groups are copied at once
+     *
+     * @param parallelism The number of region groups to copy at once
+     * @return This BlockDataMigration
+     */
+    public BlockDataMigration setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * Sets how many chunks each region group may have read but not yet written at once
+     *
+     * @param chunksInFlight The maximum number of chunks in flight per region group
+     * @return This BlockDataMigration
+     */
+    public BlockDataMigration setChunksInFlight(int chunksInFlight) {
+        this.chunksInFlight = Math.max(1, chunksInFlight);
+        return this;
+    }
+
+    /**
+     * Sets the checkpoint file, which records the region groups which have been fully copied. Groups listed in it
+     * are skipped, so a migration can be resumed after being interrupted.
+     *
+     * @param checkpoint The path to the checkpoint file
+     * @return This BlockDataMigration
+     */
+    public BlockDataMigration setCheckpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * Sets a listener to be notified of progress each time a region group is completed
+     *
+     * @param progressListener The listener, given the number of chunks copied and the total number of chunks to copy
+     * @return This BlockDataMigration
+     */
+    public BlockDataMigration setProgressListener(BiConsumer<Long, Long> progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * @return The number of chunks copied so far
+     */
+    public long getMigratedChunks() {
+        return migrated.get();
+    }
+
+    /**
+     * @return The total number of chunks to copy, or 0 if they have not been listed yet
+     */
+    public long getTotalChunks() {
+        return total;
+    }
+
+    /**
+     * Starts the migration
+     *
+     * @return A CompletableFuture which completes once all chunks have been copied and saved
+     * @throws IllegalStateException If the destination backend is used by an open BlockDataManager
+     */
+    public CompletableFuture<Void> start() {
+        if ((from.requiresMainThread() || to.requiresMainThread()) && plugin == null) {
+            throw new IllegalStateException("A plugin must be set to migrate to or from a backend which requires the main thread");
+        }
+        // An open manager would not know about the migrated chunks, and could overwrite them with empty ones
+        for (BlockDataManager manager : BlockDataManager.getManagers()) {
+            if (manager.getBackend() == to) {
+                throw new IllegalStateException("Cannot migrate to a backend which is used by an open BlockDataManager, close it first");
+            }
+        }
+        return listChunks().thenCompose(chunks -> {
+            Map<ChunkPosition, List<ChunkPosition>> groups = new LinkedHashMap<>();
+            Set<ChunkPosition> completed = readCheckpoint();
+            long count = 0;
+            for (ChunkPosition pos : chunks) {
+                ChunkPosition group = new ChunkPosition(pos.getX() >> 5, pos.getZ() >> 5, pos.getWorldName());
+                if (completed.contains(group)) {
+                    continue;
+                }
+                groups.computeIfAbsent(group, k -> new ArrayList<>()).add(pos);
+                count++;
+            }
+            total = count;
+            openCheckpoint();
+            Iterator<Map.Entry<ChunkPosition, List<ChunkPosition>>> iter = groups.entrySet().iterator();
+            CompletableFuture<?>[] workers = new CompletableFuture<?>[parallelism];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = nextGroup(iter);
+            }
+            return CompletableFuture.allOf(workers);
+        }).thenCompose(v -> to.saveAll()).whenComplete((v, e) -> closeCheckpoint());
+    }
+
+    private CompletableFuture<Void> nextGroup(Iterator<Map.Entry<ChunkPosition, List<ChunkPosition>>> iter) {
+        Map.Entry<ChunkPosition, List<ChunkPosition>> entry;
+        synchronized (iter) {
+            if (!iter.hasNext()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            entry = iter.next();
+        }
+        List<ChunkPosition> chunks = entry.getValue();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        CompletableFuture<?>[] lanes = new CompletableFuture<?>[Math.min(chunksInFlight, chunks.size())];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = copy(chunks, i, lanes.length, writes);
+        }
+        return CompletableFuture.allOf(lanes)
+                .thenCompose(v -> to.saveAll())
+                .thenCompose(v -> {
+                    synchronized (writes) {
+                        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+                    }
+                })
+                .thenRun(() -> completeGroup(entry.getKey()))
+                .thenCompose(v -> nextGroup(iter));
+    }
+
+    /**
+     * Copies every chunk in a list whose index is congruent to the lane, one after another. Each lane only waits for
+     * its write to be queued, not saved, so backends which save in batches are not waited on once per chunk. The
+     * write futures are collected so the group can wait for them once, after {@link BlockDataBackend#saveAll()}.
+     */
+    private CompletableFuture<Void> copy(List<ChunkPosition> chunks, int index, int lanes, List<CompletableFuture<Void>> writes) {
+        if (index >= chunks.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ChunkPosition pos = chunks.get(index);
+        return call(from, () -> from.loadBytes(pos)).thenCompose(data -> {
+            if (data == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return call(to, () -> CompletableFuture.completedFuture(to.saveBytes(pos, data))).thenAccept(write -> {
+                synchronized (writes) {
+                    writes.add(write);
+                }
+            });
+        }).thenCompose(v -> {
+            migrated.incrementAndGet();
+            return copy(chunks, index + lanes, lanes, writes);
+        });
+    }
+
+    private <T> CompletableFuture<T> call(BlockDataBackend backend, Supplier<CompletableFuture<T>> supplier) {
+        if (!backend.requiresMainThread() || Bukkit.isPrimaryThread()) {
+            return supplier.get();
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Task.syncDelayed(plugin, () -> supplier.get().whenComplete((v, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(v);
+            }
+        }));
+        return future;
+    }
+
+    private CompletableFuture<Collection<ChunkPosition>> listChunks() {
+        return from.loadKeys().thenApply(keys -> {
+            if (keys != null) {
+                return keys;
+            }
+            List<ChunkPosition> chunks = new ArrayList<>();
+            for (World world : Bukkit.getWorlds()) {
+                Path folder = world.getWorldFolder().toPath();
+                for (String dimension : new String[] {"region", "DIM-1/region", "DIM1/region"}) {
+                    scanRegionFiles(folder.resolve(dimension), world.getName(), chunks);
+                }
+            }
+            return chunks;
+        });
+    }
+
+    /**
+     * Lists the chunks which exist in a directory of Anvil region files by reading the location table at the start
+     * of each file, used for backends which cannot list their own chunks
+     */
+    private static void scanRegionFiles(Path directory, String world, List<ChunkPosition> chunks) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        byte[] header = new byte[4096];
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "r.*.*.mca")) {
+            for (Path file : stream) {
+                String[] split = file.getFileName().toString().split("\\.");
+                int rx, rz;
+                try {
+                    rx = Integer.parseInt(split[1]);
+                    rz = Integer.parseInt(split[2]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                int read = 0;
+                try (InputStream in = Files.newInputStream(file)) {
+                    int n;
+                    while (read < header.length && (n = in.read(header, read, header.length - read)) != -1) {
+                        read += n;
+                    }
+                }
+                for (int i = 0; i + 4 <= read; i += 4) {
+                    if (header[i] != 0 || header[i + 1] != 0 || header[i + 2] != 0 || header[i + 3] != 0) {
+                        int index = i / 4;
+                        chunks.add(new ChunkPosition((rx << 5) + (index & 31), (rz << 5) + (index >> 5), world));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Set<ChunkPosition> readCheckpoint() {
+        Set<ChunkPosition> completed = new HashSet<>();
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return completed;
+        }
+        try {
+            for (String line : Files.readAllLines(checkpoint, StandardCharsets.UTF_8)) {
+                int first = line.lastIndexOf(' ', line.lastIndexOf(' ') - 1);
+                if (first < 0) {
+                    continue;
+                }
+                String[] coords = line.substring(first + 1).split(" ");
+                completed.add(new ChunkPosition(Integer.parseInt(coords[0]), Integer.parseInt(coords[1]), line.substring(0, first)));
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return completed;
+    }
+
+    private void openCheckpoint() {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpointWriter = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized void completeGroup(ChunkPosition group) {
+        if (checkpointWriter != null) {
+            try {
+                checkpointWriter.write(group.getWorldName() + " " + group.getX() + " " + group.getZ());
+                checkpointWriter.newLine();
+                checkpointWriter.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (progressListener != null) {
+            progressListener.accept(migrated.get(), total);
+        }
+    }
+
+    private synchronized void closeCheckpoint() {
+        if (checkpointWriter == null) {
+            return;
+        }
+        try {
+            checkpointWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        checkpointWriter = null;
+    }
+
+}
@@ -0,0 +1,194 @@
+package redempt.redlib.blockdata.backend;
+
+import java.util.Arrays;
+
+/**
+ * A small LZ4-style block compressor for chunk payloads. Compressed data starts with a magic byte which can never
+ * begin a plain payload, followed by the uncompressed length, so compressed and uncompressed data can be mixed freely.
+ *
+ * @author Redempt
+ */
+class Compression {
+
+    /**
+     * 0xB9 cannot start a UTF-8 string and differs from the binary codec's magic byte
+     */
+    static final byte MAGIC = (byte) 0xB9;
+
+    private static final int HEADER = 5;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+
+    /**
+     * Checks whether data was produced by {@link #compress(byte[])}
+     *
+     * @param data The data
+     * @return Whether the data is compressed
+     */
+    static boolean isCompressed(byte[] data) {
+        return data != null && data.length >= HEADER && data[0] == MAGIC;
+    }
+
+    /**
+     * Compresses data
+     *
+     * @param data The data to compress
+     * @return The compressed data, or the data unchanged if compressing it would not make it smaller
+     */
+    static byte[] compress(byte[] data) {
+        if (data == null || data.length < MATCH_FIND_LIMIT + 1) {
+            return data;
+        }
+        int len = data.length;
+        byte[] out = new byte[HEADER + len + len / 255 + 16];
+        out[0] = MAGIC;
+        writeIntBE(out, 1, len);
+        int op = HEADER;
+        int[] table = new int[1 << HASH_BITS];
+        int mfLimit = len - MATCH_FIND_LIMIT;
+        int matchLimit = len - LAST_LITERALS;
+        int anchor = 0;
+        int ip = 0;
+        while (ip < mfLimit) {
+            int seq = readInt(data, ip);
+            int hash = hash(seq);
+            int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(data, ref) != seq) {
+                ip += 1 + ((ip - anchor) >>> 6);
+                continue;
+            }
+            while (ip > anchor && ref > 0 && data[ip - 1] == data[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < matchLimit && data[ip + matchLen] == data[ref + matchLen]) {
+                matchLen++;
+            }
+            op = writeSequence(out, op, data, anchor, ip - anchor, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+        }
+        op = writeSequence(out, op, data, anchor, len - anchor, 0, 0);
+        return op < len ? Arrays.copyOf(out, op) : data;
+    }
+
+    /**
+     * Decompresses data if it is compressed
+     *
+     * @param data The data
+     * @return The decompressed data, or the data unchanged if it is not compressed
+     * @throws IllegalArgumentException If the data is compressed but corrupt
+     */
+    static byte[] decompress(byte[] data) {
+        if (!isCompressed(data)) {
+            return data;
+        }
+        byte[] out = new byte[readIntBE(data, 1)];
+        int ip = HEADER;
+        int op = 0;
+        try {
+            while (true) {
+                int token = data[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = data[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(data, ip, out, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= data.length) {
+                    break;
+                }
+                int offset = (data[ip++] & 0xFF) | ((data[ip++] & 0xFF) << 8);
+                int matchLen = token & 15;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = data[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < 0) {
+                    throw new IllegalArgumentException("Invalid match offset in compressed data");
+                }
+                if (offset >= matchLen) {
+                    System.arraycopy(out, ref, out, op, matchLen);
+                    op += matchLen;
+                } else {
+                    for (int i = 0; i < matchLen; i++) {
+                        out[op++] = out[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Compressed data is truncated or corrupt", e);
+        }
+        if (op != out.length) {
+            throw new IllegalArgumentException("Compressed data has the wrong length");
+        }
+        return out;
+    }
+
+    /**
+     * Writes a token, literals, and a match if matchLen is not 0
+     */
+    private static int writeSequence(byte[] out, int op, byte[] data, int start, int literals, int offset, int matchLen) {
+        int tokenPos = op++;
+        int token = Math.min(literals, 15) << 4;
+        op = writeLength(out, op, literals);
+        System.arraycopy(data, start, out, op, literals);
+        op += literals;
+        if (matchLen != 0) {
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            token |= Math.min(matchLen - MIN_MATCH, 15);
+            op = writeLength(out, op, matchLen - MIN_MATCH);
+        }
+        out[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] out, int op, int length) {
+        if (length < 15) {
+            return op;
+        }
+        length -= 15;
+        while (length >= 255) {
+            out[op++] = (byte) 255;
+            length -= 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 24;
+    }
+
+    private static int readIntBE(byte[] data, int pos) {
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16 | (data[pos + 2] & 0xFF) << 8 | (data[pos + 3] & 0xFF);
+    }
+
+    private static void writeIntBE(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+}
@@ -24,6 +24,15 @@ class PDCBackend implements BlockDataBackend {
         return CompletableFuture.completedFuture(pdc.get(key, PersistentDataType.STRING));
     }
 
+    @Override
+    public CompletableFuture<byte[]> loadBytes(ChunkPosition pos) {
+        PersistentDataContainer pdc = pos.getWorld().getChunkAt(pos.getX(), pos.getZ()).getPersistentDataContainer();
+        if (pdc.has(key, PersistentDataType.STRING)) {
+            return CompletableFuture.completedFuture(BlockDataBackend.toBytes(pdc.get(key, PersistentDataType.STRING)));
+        }
+        return CompletableFuture.completedFuture(pdc.get(key, PersistentDataType.BYTE_ARRAY));
+    }
+
     @Override
     public CompletableFuture<Void> save(ChunkPosition pos, String data) {
         PersistentDataContainer pdc = pos.getWorld().getChunkAt(pos.getX(), pos.getZ()).getPersistentDataContainer();
@@ -31,6 +40,13 @@ class PDCBackend implements BlockDataBackend {
         return CompletableFuture.completedFuture(null);
     }
 
+    @Override
+    public CompletableFuture<Void> saveBytes(ChunkPosition pos, byte[] data) {
+        PersistentDataContainer pdc = pos.getWorld().getChunkAt(pos.getX(), pos.getZ()).getPersistentDataContainer();
+        pdc.set(key, PersistentDataType.BYTE_ARRAY, data);
+        return CompletableFuture.completedFuture(null);
+    }
+
     @Override
     public CompletableFuture<Void> remove(ChunkPosition pos) {
         PersistentDataContainer pdc = pos.getWorld().getChunkAt(pos.getX(), pos.getZ()).getPersistentDataContainer();
@@ -38,6 +54,11 @@ class PDCBackend implements BlockDataBackend {
         return CompletableFuture.completedFuture(null);
     }
 
+    @Override
+    public boolean requiresMainThread() {
+        return true;
+    }
+
     @Override
     public CompletableFuture<Void> saveAll() {
         return CompletableFuture.completedFuture(null);
@@ -53,6 +74,11 @@ class PDCBackend implements BlockDataBackend {
         throw new UnsupportedOperationException("PDC backend cannot access all data blocks");
     }
 
+    @Override
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadAllBytes() {
+        throw new UnsupportedOperationException("PDC backend cannot access all data blocks");
+    }
+
     @Override
     public boolean attemptMigration(BlockDataManager manager) {
         return false;
@@ -0,0 +1,383 @@
+package redempt.redlib.blockdata.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the chunk payloads for a 32x32 chunk region. Every write appends a record, and an in-memory
+ * table tracks which records make up the current data for each chunk. Reads go through a memory-mapped view of the
+ * file, except for records appended since it was mapped, which are read through the channel until enough of them
+ * have built up to be worth remapping. Once enough of the file is made up of overwritten records, it can be compacted into a new generation
+ * containing only the live data. Not thread-safe.
+ *
+ * @author Redempt
+ */
+class RegionFile {
+
+    public static final int SIZE = 32;
+
+    private static final byte REPLACE = 0;
+    private static final byte APPEND = 1;
+    private static final byte REMOVE = 2;
+    private static final int HEADER_SIZE = 11;
+    private static final long REMAP_THRESHOLD = 1 << 20;
+
+    /**
+     * Gets the name prefix shared by all generations of the file for a region
+     *
+     * @param rx The region X
+     * @param rz The region Z
+     * @return The prefix
+     */
+    public static String getPrefix(int rx, int rz) {
+        return "r." + rx + "." + rz + ".";
+    }
+
+    /**
+     * Parses the region coordinates from the name of a region file
+     *
+     * @param name The file name
+     * @return The region X and Z, or null if the name is not that of a region file
+     */
+    public static int[] parseName(String name) {
+        String[] split = name.split("\\.");
+        if (split.length != 5 || !split[0].equals("r") || !split[4].equals("log")) {
+            return null;
+        }
+        try {
+            Integer.parseInt(split[3]);
+            return new int[] {Integer.parseInt(split[1]), Integer.parseInt(split[2])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the index of a chunk within its region
+     *
+     * @param cx The chunk X
+     * @param cz The chunk Z
+     * @return The index
+     */
+    public static int index(int cx, int cz) {
+        return ((cx & (SIZE - 1)) << 5) | (cz & (SIZE - 1));
+    }
+
+    /**
+     * Opens the newest generation of the file for a region, deleting any older generations left behind by an
+     * interrupted compaction, and scans it to build the offset table
+     *
+     * @param directory The directory the region files are in
+     * @param rx        The region X
+     * @param rz        The region Z
+     * @param create    Whether to create the file if it does not exist
+     * @return The RegionFile, or null if it does not exist and create is false
+     * @throws IOException If the file could not be opened
+     */
+    public static RegionFile open(Path directory, int rx, int rz, boolean create) throws IOException {
+        String prefix = getPrefix(rx, rz);
+        int generation = -1;
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*.log")) {
+                for (Path path : stream) {
+                    if (parseName(path.getFileName().toString()) == null) {
+                        continue;
+                    }
+                    String name = path.getFileName().toString();
+                    int gen = Integer.parseInt(name.substring(prefix.length(), name.length() - 4));
+                    if (gen > generation) {
+                        if (generation != -1) {
+                            Files.deleteIfExists(directory.resolve(prefix + generation + ".log"));
+                        }
+                        generation = gen;
+                    } else {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+        }
+        if (generation == -1) {
+            if (!create) {
+                return null;
+            }
+            Files.createDirectories(directory);
+            generation = 0;
+        }
+        RegionFile region = new RegionFile(directory, prefix);
+        region.open(generation);
+        return region;
+    }
+
+    private Path directory;
+    private String prefix;
+    private int generation;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long size;
+    private long liveBytes;
+    private long[][] spans = new long[SIZE * SIZE][];
+    private CRC32 crc = new CRC32();
+
+    private RegionFile(Path directory, String prefix) {
+        this.directory = directory;
+        this.prefix = prefix;
+    }
+
+    private Path getPath(int generation) {
+        return directory.resolve(prefix + generation + ".log");
+    }
+
+    private void open(int generation) throws IOException {
+        this.generation = generation;
+        channel = FileChannel.open(getPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = channel.size();
+        mapped = null;
+        spans = new long[SIZE * SIZE][];
+        liveBytes = 0;
+        scan();
+    }
+
+    /**
+     * Reads every record in the file sequentially, truncating any partially written record at the end
+     */
+    private void scan() throws IOException {
+        ByteBuffer buf = map(size);
+        long pos = 0;
+        while (pos + HEADER_SIZE <= size) {
+            buf.position((int) pos);
+            int index = buf.getShort() & 0xFFFF;
+            byte type = buf.get();
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (index >= spans.length || type < REPLACE || type > REMOVE || length < 0 || pos + HEADER_SIZE + length > size) {
+                break;
+            }
+            crc.reset();
+            ByteBuffer data = buf.duplicate();
+            data.limit((int) pos + HEADER_SIZE + length);
+            crc.update(data);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(index, type, pos + HEADER_SIZE, length);
+            pos += HEADER_SIZE + length;
+        }
+        if (pos < size) {
+            channel.truncate(pos);
+            size = pos;
+            mapped = null;
+        }
+    }
+
+    private ByteBuffer map(long required) throws IOException {
+        if (mapped == null || mapped.capacity() < required) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Region file " + getPath(generation) + " is too large to map");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return mapped.duplicate();
+    }
+
+    private static long spanBytes(long[] span) {
+        if (span == null) {
+            return 0;
+        }
+        long total = 0;
+        for (int i = 1; i < span.length; i += 2) {
+            total += span[i] + HEADER_SIZE;
+        }
+        return total;
+    }
+
+    private void apply(int index, byte type, long offset, int length) {
+        long[] span = spans[index];
+        switch (type) {
+            case REPLACE:
+                liveBytes -= spanBytes(span);
+                spans[index] = new long[] {offset, length};
+                liveBytes += length + HEADER_SIZE;
+                break;
+            case APPEND:
+                if (span == null) {
+                    span = new long[] {offset, length};
+                } else {
+                    span = Arrays.copyOf(span, span.length + 2);
+                    span[span.length - 2] = offset;
+                    span[span.length - 1] = length;
+                }
+                spans[index] = span;
+                liveBytes += length + HEADER_SIZE;
+                break;
+            case REMOVE:
+                liveBytes -= spanBytes(span);
+                spans[index] = null;
+                break;
+        }
+    }
+
+    private void write(int index, byte type, byte[] data) throws IOException {
+        int length = data == null ? 0 : data.length;
+        crc.reset();
+        if (data != null) {
+            crc.update(data);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + length);
+        buf.putShort((short) index).put(type).putInt(length).putInt((int) crc.getValue());
+        if (data != null) {
+            buf.put(data);
+        }
+        buf.flip();
+        long pos = size;
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
+        size += HEADER_SIZE + length;
+        apply(index, type, pos + HEADER_SIZE, length);
+    }
+
+    /**
+     * Reads the data for a chunk, made up of its last saved payload followed by every delta appended since
+     *
+     * @param index The index of the chunk in this region
+     * @return The data, or null if there is none
+     * @throws IOException If the data could not be read
+     */
+    public byte[] read(int index) throws IOException {
+        long[] span = spans[index];
+        if (span == null) {
+            return null;
+        }
+        int total = 0;
+        for (int i = 1; i < span.length; i += 2) {
+            total += span[i];
+        }
+        byte[] data = new byte[total];
+        if (size - (mapped == null ? 0 : mapped.capacity()) > REMAP_THRESHOLD) {
+            map(size);
+        }
+        int pos = 0;
+        for (int i = 0; i < span.length; i += 2) {
+            int length = (int) span[i + 1];
+            if (mapped != null && span[i] + length <= mapped.capacity()) {
+                ByteBuffer buf = mapped.duplicate();
+                buf.position((int) span[i]);
+                buf.get(data, pos, length);
+            } else {
+                ByteBuffer buf = ByteBuffer.wrap(data, pos, length);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, span[i] + buf.position() - pos) < 0) {
+                        throw new IOException("Unexpected end of region file " + getPath(generation));
+                    }
+                }
+            }
+            pos += length;
+        }
+        return data;
+    }
+
+    public boolean contains(int index) {
+        return spans[index] != null;
+    }
+
+    public void replace(int index, byte[] data) throws IOException {
+        write(index, REPLACE, data);
+    }
+
+    public void append(int index, byte[] delta) throws IOException {
+        write(index, APPEND, delta);
+    }
+
+    public void remove(int index) throws IOException {
+        if (spans[index] != null) {
+            write(index, REMOVE, null);
+        }
+    }
+
+    /**
+     * Performs an operation on the data of every chunk in this region
+     *
+     * @param consumer The operation to perform, given the index of each chunk and its data
+     * @throws IOException If the data could not be read
+     */
+    public void forEach(BiConsumer<Integer, byte[]> consumer) throws IOException {
+        for (int i = 0; i < spans.length; i++) {
+            if (spans[i] != null) {
+                consumer.accept(i, read(i));
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes in the file taken up by records which have since been overwritten
+     */
+    public long getGarbage() {
+        return size - liveBytes;
+    }
+
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Rewrites this region into a new generation of its file holding only the current data of each chunk,
+     * then deletes the old generation
+     *
+     * @throws IOException If the region could not be compacted
+     */
+    public void compact() throws IOException {
+        int next = generation + 1;
+        Path tmp = directory.resolve(prefix + next + ".log.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < spans.length; i++) {
+                byte[] data = read(i);
+                if (data == null) {
+                    continue;
+                }
+                crc.reset();
+                crc.update(data);
+                ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + data.length);
+                buf.putShort((short) i).put(REPLACE).putInt(data.length).putInt((int) crc.getValue()).put(data);
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(tmp, getPath(next), StandardCopyOption.ATOMIC_MOVE);
+        Path old = getPath(generation);
+        close();
+        try {
+            Files.deleteIfExists(old);
+        } catch (IOException e) {
+            // The file may still be mapped, in which case it will be deleted the next time this region is opened
+        }
+        open(next);
+    }
+
+    /**
+     * Forces all written records to disk
+     *
+     * @throws IOException If the file could not be synced
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        mapped = null;
+        channel.close();
+    }
+
+}
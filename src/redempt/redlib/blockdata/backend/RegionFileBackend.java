@@ -0,0 +1,313 @@
+package redempt.redlib.blockdata.backend;
+
+import redempt.redlib.blockdata.BlockDataManager;
+import redempt.redlib.blockdata.ChunkPosition;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Stores chunk payloads in append-only log files, one per 32x32 chunk region per world. All file access happens on a
+ * single background thread, so region files need no locking. Only the most recently used regions are kept open, and
+ * the rest are closed until they are needed again.
+ *
+ * @author Redempt
+ */
+class RegionFileBackend implements BlockDataBackend {
+
+    private static final long COMPACTION_DELAY = 5000;
+    private static final long MIN_COMPACTION_GARBAGE = 1 << 20;
+    private static final int MAX_OPEN_REGIONS = 64;
+
+    private Path directory;
+    private Path migrateFrom;
+    private ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
+    private Map<ChunkPosition, RegionFile> regions = new LinkedHashMap<ChunkPosition, RegionFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ChunkPosition, RegionFile> eldest) {
+            if (size() <= MAX_OPEN_REGIONS) {
+                return false;
+            }
+            try {
+                eldest.getValue().force();
+                eldest.getValue().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+    };
+    private Set<ChunkPosition> compactionQueue = new HashSet<>();
+
+    public RegionFileBackend(Path directory, Path migrateFrom) {
+        this.directory = directory;
+        this.migrateFrom = migrateFrom;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ChunkPosition getRegionPosition(ChunkPosition pos) {
+        return new ChunkPosition(pos.getX() >> 5, pos.getZ() >> 5, pos.getWorldName());
+    }
+
+    private static int index(ChunkPosition pos) {
+        return RegionFile.index(pos.getX(), pos.getZ());
+    }
+
+    private RegionFile getRegion(ChunkPosition pos, boolean create) throws IOException {
+        ChunkPosition rPos = getRegionPosition(pos);
+        RegionFile region = regions.get(rPos);
+        if (region == null) {
+            region = RegionFile.open(directory.resolve(rPos.getWorldName()), rPos.getX(), rPos.getZ(), create);
+            if (region != null) {
+                regions.put(rPos, region);
+            }
+        }
+        return region;
+    }
+
+    private CompletableFuture<Void> write(ChunkPosition pos, IOTask task) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                RegionFile region = getRegion(pos, true);
+                task.run(region);
+                ChunkPosition rPos = getRegionPosition(pos);
+                if (region.getGarbage() > MIN_COMPACTION_GARBAGE && region.getGarbage() > region.getLiveBytes()
+                        && compactionQueue.add(rPos)) {
+                    exec.schedule(() -> compact(rPos), COMPACTION_DELAY, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, exec);
+    }
+
+    private void compact(ChunkPosition rPos) {
+        compactionQueue.remove(rPos);
+        RegionFile region = regions.get(rPos);
+        if (region == null) {
+            return;
+        }
+        try {
+            region.compact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> load(ChunkPosition pos) {
+        return loadBytes(pos).thenApply(BlockDataBackend::fromBytes);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadBytes(ChunkPosition pos) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                RegionFile region = getRegion(pos, false);
+                return region == null ? null : region.read(index(pos));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, exec);
+    }
+
+    @Override
+    public CompletableFuture<Void> save(ChunkPosition pos, String data) {
+        return saveBytes(pos, BlockDataBackend.toBytes(data));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBytes(ChunkPosition pos, byte[] data) {
+        return write(pos, region -> region.replace(index(pos), data));
+    }
+
+    @Override
+    public boolean supportsDeltas() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> appendBytes(ChunkPosition pos, byte[] delta) {
+        return write(pos, region -> region.append(index(pos), delta));
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(ChunkPosition pos) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                RegionFile region = getRegion(pos, false);
+                if (region != null) {
+                    region.remove(index(pos));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, exec);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAll() {
+        return CompletableFuture.runAsync(() -> {
+            for (RegionFile region : regions.values()) {
+                try {
+                    region.force();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, exec);
+    }
+
+    @Override
+    public CompletableFuture<Void> close() {
+        return CompletableFuture.runAsync(() -> {
+            for (RegionFile region : regions.values()) {
+                try {
+                    region.force();
+                    region.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            regions.clear();
+            exec.shutdown();
+        }, exec);
+    }
+
+    /**
+     * Opens every region file in the directory in turn and passes each to a consumer, along with its region position.
+     * Must only be called from the executor thread.
+     */
+    private void scan(BiConsumer<ChunkPosition, RegionFile> consumer) throws IOException {
+        try (DirectoryStream<Path> worlds = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path worldDir : worlds) {
+                String world = worldDir.getFileName().toString();
+                Set<ChunkPosition> seen = new HashSet<>();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(worldDir, "r.*.log")) {
+                    for (Path file : files) {
+                        int[] coords = RegionFile.parseName(file.getFileName().toString());
+                        if (coords != null) {
+                            seen.add(new ChunkPosition(coords[0], coords[1], world));
+                        }
+                    }
+                }
+                for (ChunkPosition rPos : seen) {
+                    RegionFile region = getRegion(new ChunkPosition(rPos.getX() << 5, rPos.getZ() << 5, world), false);
+                    if (region != null) {
+                        consumer.accept(rPos, region);
+                    }
+                }
+            }
+        }
+    }
+
+    private static ChunkPosition getChunkPosition(ChunkPosition rPos, int index) {
+        return new ChunkPosition((rPos.getX() << 5) | (index >> 5), (rPos.getZ() << 5) | (index & 31), rPos.getWorldName());
+    }
+
+    @Override
+    public CompletableFuture<Map<ChunkPosition, String>> loadAll() {
+        return loadAllBytes().thenApply(all -> {
+            Map<ChunkPosition, String> map = new HashMap<>();
+            all.forEach((pos, data) -> map.put(pos, BlockDataBackend.fromBytes(data)));
+            return map;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadAllBytes() {
+        Map<ChunkPosition, byte[]> map = new HashMap<>();
+        return streamAllBytes(map::put).thenApply(v -> map);
+    }
+
+    @Override
+    public CompletableFuture<Void> streamAllBytes(BiConsumer<ChunkPosition, byte[]> consumer) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                scan((rPos, region) -> {
+                    try {
+                        region.forEach((index, data) -> consumer.accept(getChunkPosition(rPos, index), data));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, exec);
+    }
+
+    @Override
+    public CompletableFuture<Set<ChunkPosition>> loadKeys() {
+        return CompletableFuture.supplyAsync(() -> {
+            Set<ChunkPosition> keys = new HashSet<>();
+            try {
+                scan((rPos, region) -> {
+                    for (int i = 0; i < RegionFile.SIZE * RegionFile.SIZE; i++) {
+                        if (region.contains(i)) {
+                            keys.add(getChunkPosition(rPos, i));
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return keys;
+        }, exec);
+    }
+
+    /**
+     * Copies all chunk data from the SQLite database this backend was created with into region files, then renames
+     * the database so it will not be migrated again
+     *
+     * @param manager The BlockDataManager
+     * @return Whether a migration was performed successfully
+     */
+    @Override
+    public boolean attemptMigration(BlockDataManager manager) {
+        if (migrateFrom == null || !Files.exists(migrateFrom)) {
+            return false;
+        }
+        SQLiteBackend sqlite = new SQLiteBackend(migrateFrom);
+        boolean closed = false;
+        try {
+            sqlite.streamAllBytes((pos, data) -> saveBytes(pos, data).join()).join();
+            saveAll().join();
+            sqlite.close().join();
+            closed = true;
+            Files.move(migrateFrom, migrateFrom.resolveSibling(migrateFrom.getFileName() + "_migrated"), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (!closed) {
+                sqlite.close();
+            }
+            return false;
+        }
+    }
+
+    private interface IOTask {
+
+        public void run(RegionFile region) throws IOException;
+
+    }
+
+}
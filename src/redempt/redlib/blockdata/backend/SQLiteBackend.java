@@ -14,23 +14,50 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 class SQLiteBackend implements BlockDataBackend {
 
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final int MAX_QUEUED_WRITES = 4096;
+
     private SQLHelper helper;
-    private Executor exec = Executors.newSingleThreadExecutor();
+    private ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
     private Path path;
+    private boolean compress;
+    private PreparedStatement replaceStatement;
+    private PreparedStatement deleteStatement;
+    private PreparedStatement appendStatement;
+    private PreparedStatement deleteDeltasStatement;
+    private Map<ChunkPosition, QueuedWrite> queued = new LinkedHashMap<>();
+    private CompletableFuture<Void> nextFlush = new CompletableFuture<>();
+    private boolean flushScheduled = false;
+    private volatile long lastFlushTime;
+    private volatile long totalFlushTime;
+    private volatile long flushCount;
 
     public SQLiteBackend(Path path) {
+        this(path, false);
+    }
+
+    public SQLiteBackend(Path path, boolean compress) {
         this.path = path;
+        this.compress = compress;
         try {
             Files.createDirectories(path.getParent());
         } catch (IOException e) {
@@ -38,8 +65,14 @@ class SQLiteBackend implements BlockDataBackend {
         }
         helper = new SQLHelper(SQLHelper.openSQLite(path));
         helper.execute("PRAGMA synchronous = OFF;");
-        helper.executeUpdate("CREATE TABLE IF NOT EXISTS data (x INT, z INT, world STRING, data TEXT, PRIMARY KEY (x, z, world));");
-        helper.setCommitInterval(5 * 20 * 60);
+        helper.executeUpdate("CREATE TABLE IF NOT EXISTS data (x INT, z INT, world STRING, data BLOB, PRIMARY KEY (x, z, world));");
+        helper.executeUpdate("CREATE TABLE IF NOT EXISTS deltas (x INT, z INT, world STRING, data BLOB);");
+        helper.executeUpdate("CREATE INDEX IF NOT EXISTS deltas_chunk ON deltas (x, z, world);");
+        helper.setAutoCommit(false);
+        replaceStatement = helper.prepareStatement("REPLACE INTO data VALUES (?, ?, ?, ?);");
+        deleteStatement = helper.prepareStatement("DELETE FROM data WHERE x=? AND z=? AND world=?;");
+        appendStatement = helper.prepareStatement("INSERT INTO deltas VALUES (?, ?, ?, ?);");
+        deleteDeltasStatement = helper.prepareStatement("DELETE FROM deltas WHERE x=? AND z=? AND world=?;");
     }
 
     @Override
@@ -74,30 +107,214 @@ class SQLiteBackend implements BlockDataBackend {
         }
     }
 
+    /**
+     * Queues a write for a chunk, merging it with any write for the same chunk which has not been flushed yet
+     *
+     * @param pos     The location of the chunk
+     * @param data    The data to write, or null to remove the row
+     * @param replace Whether the data replaces the stored data, rather than being appended to it as a delta
+     * @return A CompletableFuture which completes when the write has been committed
+     */
+    private CompletableFuture<Void> enqueue(ChunkPosition pos, byte[] data, boolean replace) {
+        synchronized (this) {
+            QueuedWrite write = queued.get(pos);
+            if (replace || write == null) {
+                queued.put(pos, new QueuedWrite(data, replace));
+            } else {
+                write.append(data);
+            }
+            if (queued.size() >= MAX_QUEUED_WRITES) {
+                exec.execute(this::flush);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                exec.schedule(this::flush, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            return nextFlush;
+        }
+    }
+
+    private synchronized QueuedWrite getQueued(ChunkPosition pos) {
+        QueuedWrite write = queued.get(pos);
+        return write == null ? null : new QueuedWrite(write.data, write.replace);
+    }
+
+    private void setChunk(PreparedStatement statement, ChunkPosition pos) throws SQLException {
+        statement.setInt(1, pos.getX());
+        statement.setInt(2, pos.getZ());
+        statement.setString(3, pos.getWorldName());
+    }
+
+    /**
+     * Writes all queued chunks in a single transaction, using JDBC batches on reused statements.
+     * Must only be called from the executor thread.
+     */
+    private void flush() {
+        Map<ChunkPosition, QueuedWrite> writes;
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            flushScheduled = false;
+            if (queued.isEmpty()) {
+                return;
+            }
+            writes = queued;
+            future = nextFlush;
+            queued = new LinkedHashMap<>();
+            nextFlush = new CompletableFuture<>();
+        }
+        long start = System.nanoTime();
+        Connection connection = helper.getConnection();
+        try {
+            int replaced = 0;
+            int deleted = 0;
+            int appended = 0;
+            for (Map.Entry<ChunkPosition, QueuedWrite> entry : writes.entrySet()) {
+                ChunkPosition pos = entry.getKey();
+                QueuedWrite write = entry.getValue();
+                if (!write.replace) {
+                    setChunk(appendStatement, pos);
+                    appendStatement.setBytes(4, encode(write.data));
+                    appendStatement.addBatch();
+                    appended++;
+                    continue;
+                }
+                setChunk(deleteDeltasStatement, pos);
+                deleteDeltasStatement.addBatch();
+                if (write.data == null) {
+                    setChunk(deleteStatement, pos);
+                    deleteStatement.addBatch();
+                    deleted++;
+                    continue;
+                }
+                setChunk(replaceStatement, pos);
+                replaceStatement.setBytes(4, encode(write.data));
+                replaceStatement.addBatch();
+                replaced++;
+            }
+            if (replaced + deleted > 0) {
+                deleteDeltasStatement.executeBatch();
+            }
+            if (replaced > 0) {
+                replaceStatement.executeBatch();
+            }
+            if (deleted > 0) {
+                deleteStatement.executeBatch();
+            }
+            if (appended > 0) {
+                appendStatement.executeBatch();
+            }
+            connection.commit();
+            future.complete(null);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+            for (PreparedStatement statement : new PreparedStatement[] {replaceStatement, deleteStatement, deleteDeltasStatement, appendStatement}) {
+                try {
+                    statement.clearBatch();
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            synchronized (this) {
+                writes.forEach((pos, write) -> {
+                    QueuedWrite newer = queued.get(pos);
+                    if (newer == null) {
+                        queued.put(pos, write);
+                    } else if (!newer.replace) {
+                        write.append(newer.data);
+                        queued.put(pos, write);
+                    }
+                });
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    exec.schedule(this::flush, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            }
+            future.completeExceptionally(e);
+        }
+        long time = System.nanoTime() - start;
+        lastFlushTime = time;
+        totalFlushTime += time;
+        flushCount++;
+    }
+
+    /**
+     * Compresses data to be written if compression is enabled. Rows are always decompressed when read, so compressed
+     * and uncompressed rows can be mixed, and compression can be turned on or off for an existing database.
+     */
+    private byte[] encode(byte[] data) {
+        return compress ? Compression.compress(data) : data;
+    }
+
+    @Override
+    public synchronized int getQueuedWrites() {
+        return queued.size();
+    }
+
+    @Override
+    public long getLastFlushTime() {
+        return lastFlushTime;
+    }
+
+    @Override
+    public long getAverageFlushTime() {
+        long count = flushCount;
+        return count == 0 ? 0 : totalFlushTime / count;
+    }
+
     @Override
     public CompletableFuture<String> load(ChunkPosition pos) {
+        return loadBytes(pos).thenApply(BlockDataBackend::fromBytes);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadBytes(ChunkPosition pos) {
         return CompletableFuture.supplyAsync(() -> {
-            return helper.querySingleResultString("SELECT data FROM data WHERE x=? AND z=? AND world=?", pos.getX(), pos.getZ(), pos.getWorld().getName());
+            QueuedWrite write = getQueued(pos);
+            if (write != null && write.replace) {
+                return write.data;
+            }
+            byte[] base = Compression.decompress(helper.querySingleResultBytes("SELECT data FROM data WHERE x=? AND z=? AND world=?", pos.getX(), pos.getZ(), pos.getWorldName()));
+            QueuedWrite data = new QueuedWrite(appendDeltas(pos, base), true);
+            if (write != null) {
+                data.append(write.data);
+            }
+            return data.data;
         }, exec);
     }
 
+    @Override
+    public boolean supportsDeltas() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> appendBytes(ChunkPosition pos, byte[] delta) {
+        return enqueue(pos, delta, false);
+    }
+
     @Override
     public CompletableFuture<Void> save(ChunkPosition pos, String data) {
-        return CompletableFuture.runAsync(() -> {
-            helper.executeUpdate("REPLACE INTO data VALUES (?, ?, ?, ?);", pos.getX(), pos.getZ(), pos.getWorld().getName(), data);
-        }, exec);
+        return enqueue(pos, BlockDataBackend.toBytes(data), true);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBytes(ChunkPosition pos, byte[] data) {
+        return enqueue(pos, data, true);
     }
 
     @Override
     public CompletableFuture<Void> remove(ChunkPosition pos) {
-        return CompletableFuture.runAsync(() -> {
-            helper.executeUpdate("DELETE FROM data WHERE x=? AND z=? AND world=?;", pos.getX(), pos.getZ(), pos.getWorld().getName());
-        }, exec);
+        return enqueue(pos, null, true);
     }
 
     @Override
     public CompletableFuture<Void> saveAll() {
         return CompletableFuture.runAsync(() -> {
+            flush();
             helper.commit();
         }, exec);
     }
@@ -105,26 +322,123 @@ class SQLiteBackend implements BlockDataBackend {
     @Override
     public CompletableFuture<Void> close() {
         return CompletableFuture.runAsync(() -> {
-            saveAll();
+            flush();
+            helper.commit();
+            try {
+                replaceStatement.close();
+                deleteStatement.close();
+                appendStatement.close();
+                deleteDeltasStatement.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
             helper.close();
+            exec.shutdown();
         }, exec);
     }
 
     @Override
     public CompletableFuture<Map<ChunkPosition, String>> loadAll() {
+        return loadAllBytes().thenApply(all -> {
+            Map<ChunkPosition, String> map = new HashMap<>();
+            all.forEach((pos, data) -> map.put(pos, BlockDataBackend.fromBytes(data)));
+            return map;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadAllBytes() {
         return CompletableFuture.supplyAsync(() -> {
+            flush();
             Results results = helper.queryResults("SELECT * FROM data;");
-            Map<ChunkPosition, String> map = new HashMap<>();
+            Map<ChunkPosition, byte[]> map = new HashMap<>();
             results.forEach(r -> {
                 int x = r.get(1);
                 int z = r.get(2);
                 String world = r.getString(3);
                 ChunkPosition pos = new ChunkPosition(x, z, world);
-                String data = r.getString(4);
-                map.put(pos, data);
+                map.put(pos, Compression.decompress(r.getBytes(4)));
+            });
+            helper.queryResults("SELECT x, z, world, data FROM deltas ORDER BY rowid;").forEach(r -> {
+                int x = r.get(1);
+                int z = r.get(2);
+                String world = r.getString(3);
+                ChunkPosition pos = new ChunkPosition(x, z, world);
+                QueuedWrite data = new QueuedWrite(map.get(pos), true);
+                data.append(Compression.decompress(r.getBytes(4)));
+                map.put(pos, data.data);
             });
             return map;
         }, exec);
     }
 
+    @Override
+    public CompletableFuture<Void> streamAllBytes(BiConsumer<ChunkPosition, byte[]> consumer) {
+        return CompletableFuture.runAsync(() -> {
+            flush();
+            Set<ChunkPosition> withDeltas = new HashSet<>();
+            helper.queryResults("SELECT DISTINCT x, z, world FROM deltas;").forEach(r -> {
+                int x = r.get(1);
+                int z = r.get(2);
+                withDeltas.add(new ChunkPosition(x, z, r.getString(3)));
+            });
+            helper.queryResults("SELECT x, z, world, data FROM data;").forEach(r -> {
+                int x = r.get(1);
+                int z = r.get(2);
+                ChunkPosition pos = new ChunkPosition(x, z, r.getString(3));
+                byte[] data = Compression.decompress(r.getBytes(4));
+                if (withDeltas.remove(pos)) {
+                    data = appendDeltas(pos, data);
+                }
+                consumer.accept(pos, data);
+            });
+            for (ChunkPosition pos : withDeltas) {
+                consumer.accept(pos, appendDeltas(pos, null));
+            }
+        }, exec);
+    }
+
+    private byte[] appendDeltas(ChunkPosition pos, byte[] base) {
+        QueuedWrite data = new QueuedWrite(base, true);
+        helper.queryResults("SELECT data FROM deltas WHERE x=? AND z=? AND world=? ORDER BY rowid;", pos.getX(), pos.getZ(), pos.getWorldName())
+                .forEach(r -> data.append(Compression.decompress(r.getBytes(1))));
+        return data.data;
+    }
+
+    @Override
+    public CompletableFuture<Set<ChunkPosition>> loadKeys() {
+        return CompletableFuture.supplyAsync(() -> {
+            flush();
+            Set<ChunkPosition> keys = new HashSet<>();
+            helper.queryResults("SELECT x, z, world FROM data UNION SELECT x, z, world FROM deltas;").forEach(r -> {
+                int x = r.get(1);
+                int z = r.get(2);
+                keys.add(new ChunkPosition(x, z, r.getString(3)));
+            });
+            return keys;
+        }, exec);
+    }
+
+    private static class QueuedWrite {
+
+        private byte[] data;
+        private boolean replace;
+
+        public QueuedWrite(byte[] data, boolean replace) {
+            this.data = data;
+            this.replace = replace;
+        }
+
+        public void append(byte[] delta) {
+            if (data == null) {
+                data = delta;
+                return;
+            }
+            byte[] combined = Arrays.copyOf(data, data.length + delta.length);
+            System.arraycopy(delta, 0, combined, data.length, delta.length);
+            data = combined;
+        }
+
+    }
+
 }
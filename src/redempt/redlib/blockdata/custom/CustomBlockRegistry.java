@@ -4,6 +4,7 @@ import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 import org.bukkit.entity.Entity;
@@ -18,6 +19,7 @@ import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.plugin.Plugin;
 import redempt.redlib.RedLib;
 import redempt.redlib.blockdata.BlockDataManager;
@@ -28,12 +30,8 @@ import redempt.redlib.blockdata.events.DataBlockDestroyEvent.DestroyCause;
 import redempt.redlib.misc.Path;
 import redempt.redlib.nms.NMSHelper;
 
-import java.io.File;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Modifier;
 import java.util.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 
 /**
  * Loads and registers CustomBlockTypes
@@ -54,6 +52,8 @@ public class CustomBlockRegistry implements Listener {
     private BlockDataManager manager;
     private Map<String, CustomBlockType<?>> types = new HashMap<>();
     private Map<String, CustomBlockType<?>> byItemName = new HashMap<>();
+    private CustomBlockType<?>[] byTypeId = new CustomBlockType<?>[0];
+    private NamespacedKey itemKey;
     private Plugin plugin;
 
     /**
@@ -100,20 +100,7 @@ public class CustomBlockRegistry implements Listener {
         }
         this.plugin = plugin;
         try {
-            ClassLoader loader = plugin.getClass().getClassLoader();
-            JarFile jar = new JarFile(new File(plugin.getClass().getProtectionDomain().getCodeSource().getLocation().toURI()));
-            Enumeration<JarEntry> entries = jar.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                String name = entry.getName();
-                if (entry.isDirectory() || !name.endsWith(".class")) {
-                    continue;
-                }
-                name = name.replace("/", ".").substring(0, name.length() - 6);
-                Class<?> clazz = Class.forName(name, true, loader);
-                if (!CustomBlockType.class.isAssignableFrom(clazz) || clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) {
-                    continue;
-                }
+            for (Class<?> clazz : RedLib.getExtendingClasses(plugin, CustomBlockType.class)) {
                 try {
                     Constructor<?> constructor = clazz.getConstructor();
                     CustomBlockType<?> type = (CustomBlockType<?>) constructor.newInstance();
@@ -138,6 +125,14 @@ public class CustomBlockRegistry implements Listener {
         byItemName.put(name, type);
         type.register(manager);
         types.put(type.getName(), type);
+        int id = manager.getTypeId(type.getName());
+        if (id >= byTypeId.length) {
+            byTypeId = Arrays.copyOf(byTypeId, id + 1);
+        }
+        byTypeId[id] = type;
+        if (itemKey == null && RedLib.MID_VERSION >= 14) {
+            itemKey = new NamespacedKey(manager.getPlugin(), CustomBlockType.ITEM_TAG);
+        }
     }
 
     /**
@@ -166,15 +161,49 @@ public class CustomBlockRegistry implements Listener {
      */
     public <T extends CustomBlock> T getCustomBlock(Block block) {
         DataBlock db = manager.getDataBlock(block, false);
+        CustomBlockType<?> ctype = getType(db);
+        if (ctype == null) {
+            return null;
+        }
+        return (T) ctype.get(db);
+    }
+
+    /**
+     * Gets the CustomBlockType of a Block without creating a CustomBlock for it
+     *
+     * @param block The Block to check
+     * @return The CustomBlockType of the Block, or null if it is not a custom block of this registry
+     */
+    public CustomBlockType<?> getType(Block block) {
+        return getType(manager.getDataBlock(block, false));
+    }
+
+    private CustomBlockType<?> getType(DataBlock db) {
         if (db == null) {
             return null;
         }
-        String type = db.getString("custom-type");
-        CustomBlockType<?> ctype = types.get(type);
-        if (ctype == null) {
+        int id = db.getTypeId();
+        CustomBlockType<?>[] byTypeId = this.byTypeId;
+        return id < 0 || id >= byTypeId.length ? null : byTypeId[id];
+    }
+
+    /**
+     * Identifies the CustomBlockType of an item, by the tag added with {@link CustomBlockType#tagItem(ItemStack)} if
+     * it has one, or by its display name otherwise
+     *
+     * @param item The item to check
+     * @return The CustomBlockType of the item, or null if it is not the item for a CustomBlockType in this registry
+     */
+    public CustomBlockType<?> getType(ItemStack item) {
+        if (item == null || !item.hasItemMeta()) {
             return null;
         }
-        return (T) ctype.get(block);
+        ItemMeta meta = item.getItemMeta();
+        String tag = CustomBlockType.getTag(meta, itemKey);
+        if (tag != null) {
+            return types.get(tag);
+        }
+        return meta.hasDisplayName() ? byItemName.get(meta.getDisplayName()) : null;
     }
 
     @EventHandler
@@ -195,12 +224,7 @@ public class CustomBlockRegistry implements Listener {
         if (db != null) {
             manager.remove(db);
         }
-        ItemStack item = e.getItemInHand();
-        if (item == null || !item.hasItemMeta() || !item.getItemMeta().hasDisplayName()) {
-            return;
-        }
-        String name = item.getItemMeta().getDisplayName();
-        CustomBlockType<T> type = (CustomBlockType<T>) byItemName.get(name);
+        CustomBlockType<T> type = (CustomBlockType<T>) getType(e.getItemInHand());
         if (type == null) {
             return;
         }
@@ -231,7 +255,7 @@ public class CustomBlockRegistry implements Listener {
             DataBlock db = e.getDataBlock();
             List<ItemStack> items = new ArrayList<>();
             T custom = type.get(db);
-            items.add(type.getItem(custom));
+            items.add(type.tagItem(type.getItem(custom)));
             items.addAll(type.getDrops(custom));
             if (RedLib.MID_VERSION >= 12) {
                 BlockBreakEvent parent = (BlockBreakEvent) e.getParent();
@@ -286,7 +310,7 @@ public class CustomBlockRegistry implements Listener {
                 e.setCancelled(true);
                 Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, () -> {
                     CustomBlockType<T> type = (CustomBlockType<T>) cb.getType();
-                    ItemStack item = type.getItem(cb);
+                    ItemStack item = type.tagItem(type.getItem(cb));
                     for (int i = 0; i < 9; i++) {
                         if (item.isSimilar(e.getWhoClicked().getInventory().getItem(i))) {
                             e.getWhoClicked().getInventory().setHeldItemSlot(i);
@@ -1,13 +1,18 @@
 package redempt.redlib.blockdata.custom;
 
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Listener;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.plugin.Plugin;
+import redempt.redlib.RedLib;
 import redempt.redlib.blockdata.BlockDataManager;
 import redempt.redlib.blockdata.DataBlock;
+import redempt.redlib.blockdata.DataBlockSchema;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,8 +25,12 @@ import java.util.List;
  */
 public abstract class CustomBlockType<T extends CustomBlock> implements Listener {
 
+    static final String ITEM_TAG = "custom-block-type";
+
     private BlockDataManager manager;
     private String typeName;
+    private NamespacedKey itemKey;
+    private int typeId = -1;
 
     /**
      * Construct a CustomBlockType with the type name. You should only call this if you don't use
@@ -40,7 +49,40 @@ public abstract class CustomBlockType<T extends CustomBlock> implements Listener
      * @return Whether the item matches
      */
     public boolean itemMatches(ItemStack item) {
-        return item.hasItemMeta() && getBaseItemName().equals(item.getItemMeta().getDisplayName());
+        if (!item.hasItemMeta()) {
+            return false;
+        }
+        ItemMeta meta = item.getItemMeta();
+        return typeName.equals(getTag(meta, itemKey)) || getBaseItemName().equals(meta.getDisplayName());
+    }
+
+    /**
+     * Tags an item with the name of this CustomBlockType, so it is identified when placed without relying on its
+     * display name. Items dropped by a {@link CustomBlockRegistry} are tagged automatically. Does nothing on
+     * versions before 1.14.
+     *
+     * @param item The item to tag
+     * @return The item
+     */
+    public ItemStack tagItem(ItemStack item) {
+        if (itemKey == null || item == null || !item.hasItemMeta()) {
+            return item;
+        }
+        ItemMeta meta = item.getItemMeta();
+        meta.getPersistentDataContainer().set(itemKey, PersistentDataType.STRING, typeName);
+        item.setItemMeta(meta);
+        return item;
+    }
+
+    /**
+     * Reads the name of the CustomBlockType an item was tagged with
+     *
+     * @param meta The meta of the item
+     * @param key  The key the tag is stored under, or null if tags are not supported
+     * @return The name of the CustomBlockType, or null if the item is not tagged
+     */
+    static String getTag(ItemMeta meta, NamespacedKey key) {
+        return key == null ? null : meta.getPersistentDataContainer().get(key, PersistentDataType.STRING);
     }
 
     /**
@@ -69,8 +111,26 @@ public abstract class CustomBlockType<T extends CustomBlock> implements Listener
      */
     public abstract String getBaseItemName();
 
+    /**
+     * Declares typed fields for blocks of this CustomBlockType, which are stored in primitive slots rather than the
+     * map of each DataBlock. Returns null by default, override to define a schema.
+     *
+     * @return The schema for this CustomBlockType, or null
+     */
+    public DataBlockSchema getSchema() {
+        return null;
+    }
+
     protected final void register(BlockDataManager manager) {
         this.manager = manager;
+        typeId = manager.getTypeId(typeName);
+        if (RedLib.MID_VERSION >= 14) {
+            itemKey = new NamespacedKey(manager.getPlugin(), ITEM_TAG);
+        }
+        DataBlockSchema schema = getSchema();
+        if (schema != null) {
+            manager.registerSchema(typeName, schema);
+        }
     }
 
     /**
@@ -117,7 +177,7 @@ public abstract class CustomBlockType<T extends CustomBlock> implements Listener
      * @return The CustomBlock of this type represented by this DataBlock, or null if it is not present
      */
     public final T get(DataBlock db) {
-        if (db == null || !db.getString("custom-type").equals(typeName) || !typeMatches(db.getBlock().getType())
+        if (db == null || db.getTypeId() != typeId || !typeMatches(db.getBlock().getType())
                 || !db.getManager().equals(manager)) {
             return null;
         }
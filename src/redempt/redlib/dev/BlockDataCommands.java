@@ -0,0 +1,55 @@
+package redempt.redlib.dev;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import redempt.redlib.blockdata.BlockDataManager;
+import redempt.redlib.blockdata.BlockDataMetrics;
+import redempt.redlib.blockdata.BlockDataMetrics.Histogram;
+import redempt.redlib.commandmanager.CommandHook;
+
+import java.util.List;
+import java.util.Map;
+
+public class BlockDataCommands {
+
+    @CommandHook("blockdatametrics")
+    public void showMetrics(CommandSender sender) {
+        List<BlockDataManager> managers = BlockDataManager.getManagers();
+        if (managers.isEmpty()) {
+            sender.sendMessage(ChatColor.RED + "No BlockDataManagers are open");
+            return;
+        }
+        for (BlockDataManager manager : managers) {
+            BlockDataMetrics metrics = manager.getMetrics();
+            sender.sendMessage(ChatColor.GREEN + manager.getPlugin().getName() + ChatColor.YELLOW + " (" + metrics.getBackend() + ")");
+            sender.sendMessage(ChatColor.GREEN + "  Loaded: " + ChatColor.YELLOW + metrics.getLoadedChunks() + " chunks, "
+                    + metrics.getLoadedBlocks() + " blocks, " + metrics.getDirtyChunks() + " unsaved chunks");
+            sender.sendMessage(ChatColor.GREEN + "  Chunk loads: " + ChatColor.YELLOW + format(metrics.getLoadTime()));
+            sender.sendMessage(ChatColor.GREEN + "  Bytes: " + ChatColor.YELLOW + metrics.getBytesRead() + " read, "
+                    + metrics.getBytesWritten() + " written in " + metrics.getChunksWritten() + " writes");
+            long hits = metrics.getPresenceHits();
+            long total = hits + metrics.getPresenceMisses();
+            sender.sendMessage(ChatColor.GREEN + "  Presence: " + ChatColor.YELLOW + hits + "/" + total + " lookups skipped"
+                    + (total == 0 ? "" : String.format(" (%.1f%%)", hits * 100d / total)));
+            sender.sendMessage(ChatColor.GREEN + "  Blocking waits: " + ChatColor.YELLOW + format(metrics.getWaitTime()));
+            for (Map.Entry<String, Long> entry : metrics.getWaitsByThread().entrySet()) {
+                sender.sendMessage(ChatColor.GREEN + "    " + entry.getKey() + ": " + ChatColor.YELLOW + entry.getValue());
+            }
+        }
+    }
+
+    @CommandHook("blockdataresetmetrics")
+    public void resetMetrics(CommandSender sender) {
+        BlockDataManager.getManagers().forEach(m -> m.getMetrics().reset());
+        sender.sendMessage(ChatColor.GREEN + "Block data metrics reset!");
+    }
+
+    private String format(Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return "none";
+        }
+        return String.format("%d, mean %.2fms, p50 %.2fms, p99 %.2fms, max %.2fms", histogram.getCount(),
+                histogram.getMeanMillis(), histogram.getPercentileMillis(50), histogram.getPercentileMillis(99), histogram.getMaxMillis());
+    }
+
+}
@@ -0,0 +1,366 @@
+package redempt.redlib.misc;
+
+import org.bukkit.plugin.Plugin;
+import redempt.redlib.RedLib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+
+/**
+ * An index of the classes in a plugin's jar, built by reading the header of each class file, so classes can be
+ * searched by supertype without loading or initializing them. Indexes are cached on disk and in memory, and are only
+ * rebuilt when the size, modification time and CRC32 of the jar no longer match.
+ *
+ * @author Redempt
+ */
+public class ClassIndex {
+
+    private static final int CACHE_MAGIC = 0x52434958;
+    private static final int CACHE_VERSION = 1;
+    private static final int CLASS_MAGIC = 0xCAFEBABE;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+
+    private static Map<Path, JarIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the index of the classes in a plugin's jar, building it if the jar has changed since it was last indexed
+     *
+     * @param plugin The plugin
+     * @return The ClassIndex for the plugin
+     */
+    public static ClassIndex get(Plugin plugin) {
+        Path jar;
+        try {
+            jar = Paths.get(plugin.getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        Path cache = RedLib.getInstance().getDataFolder().toPath().resolve("classindex").resolve(plugin.getName() + ".idx");
+        try {
+            long size = Files.size(jar);
+            long modified = Files.getLastModifiedTime(jar).toMillis();
+            JarIndex index = indexes.get(jar);
+            if (index == null || index.size != size || index.modified != modified) {
+                index = JarIndex.load(jar, cache, size, modified);
+                indexes.put(jar, index);
+            }
+            return new ClassIndex(index, plugin.getClass().getClassLoader());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not index classes of " + plugin.getName(), e);
+        }
+    }
+
+    private JarIndex index;
+    private ClassLoader loader;
+
+    private ClassIndex(JarIndex index, ClassLoader loader) {
+        this.index = index;
+        this.loader = loader;
+    }
+
+    /**
+     * @return The names of all classes in the jar
+     */
+    public Set<String> getClassNames() {
+        return Collections.unmodifiableSet(index.classes.keySet());
+    }
+
+    /**
+     * Gets all non-abstract, non-interface classes in the jar which extend or implement a class. Only the matching
+     * classes are loaded, and none are initialized.
+     *
+     * @param clazz The class
+     * @param <T>   The type of the class
+     * @return The list of matching classes
+     */
+    public <T> List<Class<? extends T>> getExtendingClasses(Class<T> clazz) {
+        List<Class<? extends T>> list = new ArrayList<>();
+        Map<String, Boolean> visited = new HashMap<>();
+        for (ClassInfo info : index.classes.values()) {
+            if ((info.access & (ACC_INTERFACE | ACC_ABSTRACT)) != 0 || !isSubtype(info.name, clazz, visited)) {
+                continue;
+            }
+            try {
+                Class<?> c = Class.forName(info.name, false, loader);
+                if (clazz.isAssignableFrom(c) && !Modifier.isAbstract(c.getModifiers()) && !c.isInterface()) {
+                    list.add((Class<? extends T>) c);
+                }
+            } catch (ClassNotFoundException | LinkageError e) {
+                continue;
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Walks the supertypes of a class through the index, only loading (without initializing) supertypes which are
+     * not in the jar
+     */
+    private boolean isSubtype(String name, Class<?> target, Map<String, Boolean> visited) {
+        if (name == null) {
+            return false;
+        }
+        if (name.equals(target.getName())) {
+            return true;
+        }
+        Boolean known = visited.get(name);
+        if (known != null) {
+            return known;
+        }
+        visited.put(name, false);
+        boolean result;
+        ClassInfo info = index.classes.get(name);
+        if (info == null) {
+            try {
+                result = !name.equals("java.lang.Object") && target.isAssignableFrom(Class.forName(name, false, loader));
+            } catch (ClassNotFoundException | LinkageError e) {
+                result = false;
+            }
+        } else {
+            result = isSubtype(info.superName, target, visited);
+            for (int i = 0; i < info.interfaces.length && !result; i++) {
+                result = isSubtype(info.interfaces[i], target, visited);
+            }
+        }
+        visited.put(name, result);
+        return result;
+    }
+
+    private static class JarIndex {
+
+        private long size;
+        private long modified;
+        private long crc;
+        private Map<String, ClassInfo> classes = new HashMap<>();
+
+        private JarIndex(long size, long modified, long crc) {
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+        }
+
+        public static JarIndex load(Path jar, Path cache, long size, long modified) throws IOException {
+            JarIndex cached = null;
+            if (Files.exists(cache)) {
+                try {
+                    cached = read(cache);
+                } catch (IOException e) {
+                    cached = null;
+                }
+            }
+            if (cached != null && cached.size == size && cached.modified == modified) {
+                return cached;
+            }
+            long crc = checksum(jar);
+            if (cached != null && cached.size == size && cached.crc == crc) {
+                cached.modified = modified;
+                write(cached, cache);
+                return cached;
+            }
+            JarIndex index = new JarIndex(size, modified, crc);
+            index.scan(jar);
+            write(index, cache);
+            return index;
+        }
+
+        private static long checksum(Path jar) throws IOException {
+            CRC32 crc = new CRC32();
+            byte[] buf = new byte[65536];
+            try (InputStream in = Files.newInputStream(jar)) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    crc.update(buf, 0, n);
+                }
+            }
+            return crc.getValue();
+        }
+
+        private void scan(Path jar) throws IOException {
+            try (JarFile file = new JarFile(jar.toFile())) {
+                Enumeration<JarEntry> entries = file.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/")
+                            || name.endsWith("module-info.class") || name.endsWith("package-info.class")) {
+                        continue;
+                    }
+                    try (InputStream in = file.getInputStream(entry)) {
+                        ClassInfo info = ClassInfo.parse(new DataInputStream(new BufferedInputStream(in)));
+                        if (info != null) {
+                            classes.put(info.name, info);
+                        }
+                    } catch (IOException e) {
+                        continue;
+                    }
+                }
+            }
+        }
+
+        private static JarIndex read(Path cache) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+                if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+                    return null;
+                }
+                JarIndex index = new JarIndex(in.readLong(), in.readLong(), in.readLong());
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    String superName = in.readUTF();
+                    int access = in.readUnsignedShort();
+                    String[] interfaces = new String[in.readUnsignedShort()];
+                    for (int j = 0; j < interfaces.length; j++) {
+                        interfaces[j] = in.readUTF();
+                    }
+                    index.classes.put(name, new ClassInfo(name, superName.isEmpty() ? null : superName, interfaces, access));
+                }
+                return index;
+            }
+        }
+
+        private static void write(JarIndex index, Path cache) {
+            try {
+                Files.createDirectories(cache.getParent());
+                Path temp = cache.resolveSibling(cache.getFileName() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(CACHE_MAGIC);
+                    out.writeInt(CACHE_VERSION);
+                    out.writeLong(index.size);
+                    out.writeLong(index.modified);
+                    out.writeLong(index.crc);
+                    out.writeInt(index.classes.size());
+                    for (ClassInfo info : index.classes.values()) {
+                        out.writeUTF(info.name);
+                        out.writeUTF(info.superName == null ? "" : info.superName);
+                        out.writeShort(info.access);
+                        out.writeShort(info.interfaces.length);
+                        for (String iface : info.interfaces) {
+                            out.writeUTF(iface);
+                        }
+                    }
+                }
+                Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+    private static class ClassInfo {
+
+        private String name;
+        private String superName;
+        private String[] interfaces;
+        private int access;
+
+        private ClassInfo(String name, String superName, String[] interfaces, int access) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+        }
+
+        /**
+         * Reads the name, access flags and direct supertypes from the start of a class file, skipping over the
+         * constant pool entries which are not needed
+         */
+        public static ClassInfo parse(DataInputStream in) throws IOException {
+            if (in.readInt() != CLASS_MAGIC) {
+                return null;
+            }
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+            int count = in.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classes = new int[count];
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 7:
+                        classes[i] = in.readUnsignedShort();
+                        break;
+                    case 8:
+                    case 16:
+                    case 19:
+                    case 20:
+                        skip(in, 2);
+                        break;
+                    case 15:
+                        skip(in, 3);
+                        break;
+                    case 3:
+                    case 4:
+                    case 9:
+                    case 10:
+                    case 11:
+                    case 12:
+                    case 17:
+                    case 18:
+                        skip(in, 4);
+                        break;
+                    case 5:
+                    case 6:
+                        skip(in, 8);
+                        i++;
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag);
+                }
+            }
+            int access = in.readUnsignedShort();
+            String name = getClassName(utf8, classes, in.readUnsignedShort());
+            String superName = getClassName(utf8, classes, in.readUnsignedShort());
+            String[] interfaces = new String[in.readUnsignedShort()];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaces[i] = getClassName(utf8, classes, in.readUnsignedShort());
+            }
+            return name == null ? null : new ClassInfo(name, superName, interfaces, access);
+        }
+
+        private static String getClassName(String[] utf8, int[] classes, int index) {
+            if (index == 0 || index >= classes.length || utf8[classes[index]] == null) {
+                return null;
+            }
+            return utf8[classes[index]].replace('/', '.');
+        }
+
+        private static void skip(DataInputStream in, int bytes) throws IOException {
+            while (bytes > 0) {
+                int skipped = in.skipBytes(bytes);
+                if (skipped <= 0) {
+                    in.readByte();
+                    skipped = 1;
+                }
+                bytes -= skipped;
+            }
+        }
+
+    }
+
+}
@@ -1,21 +1,50 @@
 package redempt.redlib.sql;
 
+import redempt.redlib.RedLib;
+import redempt.redlib.misc.Task;
+
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
 
 /**
- * A cache to store the values in a single column of a single SQL table
+ * A cache to store the values in a single column of a single SQL table. Reads do not lock. The cache can be bounded
+ * by a number of entries or a total weight, in which case entries are evicted by a clock sweep which gives entries
+ * that were read recently or often another chance. Modified entries are never evicted or expired until they have been
+ * flushed.
  */
 public class SQLCache {
 
+    private static final int MAX_FREQUENCY = 3;
+    private static final int PRELOAD_FETCH_SIZE = 1000;
+
     private String tableName;
     private String columnName;
     private String[] primaryKeyNames;
     private String deleteQuery;
     private String selectQuery;
     private String updateQuery;
-    private Map<SQLCacheEntry, Object> cache = Collections.synchronizedMap(new HashMap<>());
-    private Set<SQLCacheEntry> modified = Collections.synchronizedSet(new HashSet<>());
+    private Map<SQLCacheEntry, Node> cache = new ConcurrentHashMap<>();
+    private Set<SQLCacheEntry> modified = ConcurrentHashMap.newKeySet();
+    private Queue<Node> clock = new ConcurrentLinkedQueue<>();
+    private ReentrantLock evictionLock = new ReentrantLock();
+    private AtomicLong weight = new AtomicLong();
+    private AtomicLong stale = new AtomicLong();
+    private volatile long lastPurge = System.nanoTime();
+    private volatile long maxWeight = Long.MAX_VALUE;
+    private volatile ToIntFunction<Object> weigher = null;
+    private volatile long expireNanos = 0;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
     private SQLHelper sql;
 
     protected SQLCache(SQLHelper sql, String tableName, String columnName, String... primaryKeyNames) {
@@ -60,6 +89,116 @@ public class SQLCache {
         return primaryKeyNames;
     }
 
+    /**
+     * Sets the maximum number of values this cache will hold. Values which have been modified and not flushed are
+     * never evicted, so the cache can exceed this size until they are flushed.
+     *
+     * @param maxSize The maximum number of values, or -1 for no limit
+     */
+    public void setMaxSize(long maxSize) {
+        setMaxWeight(maxSize, null);
+    }
+
+    /**
+     * Sets the maximum total weight of the values this cache will hold. Values which have been modified and not
+     * flushed are never evicted, so the cache can exceed this weight until they are flushed.
+     *
+     * @param maxWeight The maximum total weight, or -1 for no limit
+     * @param weigher   A function which returns the weight of a value, or null to give every value a weight of 1
+     */
+    public void setMaxWeight(long maxWeight, ToIntFunction<Object> weigher) {
+        evictionLock.lock();
+        try {
+            this.weigher = weigher;
+            long total = 0;
+            for (Node node : cache.values()) {
+                synchronized (node) {
+                    node.weight = weigh(node.value);
+                    total += node.weight;
+                }
+            }
+            weight.set(total);
+            this.maxWeight = maxWeight < 0 ? Long.MAX_VALUE : maxWeight;
+            clock.clear();
+            stale.set(0);
+            boolean bounded = this.maxWeight != Long.MAX_VALUE;
+            for (Node node : cache.values()) {
+                node.queued = bounded && !node.removed;
+                if (node.queued) {
+                    clock.add(node);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        evict();
+    }
+
+    /**
+     * Sets how long values are cached after they are loaded or updated before they are queried again. Values which
+     * have been modified and not flushed do not expire. Expired values are removed when they are selected, and the
+     * whole cache is swept for expired values at most once per duration when new values are loaded.
+     *
+     * @param duration The duration, or 0 to never expire values
+     * @param unit     The unit of the duration
+     */
+    public void setExpireAfterWrite(long duration, TimeUnit unit) {
+        expireNanos = Math.max(0, unit.toNanos(duration));
+    }
+
+    /**
+     * @return The number of selects which were answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of selects which had to query the table
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of values evicted or expired
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The fraction of selects which were answered from the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /**
+     * @return The number of values currently cached
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return The total weight of the values currently cached, which is the number of values if no weigher is set
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
     protected boolean keyNamesMatch(String[] matches) {
         for (String match : matches) {
             if (match.equals(columnName)) {
@@ -82,13 +221,23 @@ public class SQLCache {
         }
     }
 
+    private int weigh(Object value) {
+        ToIntFunction<Object> weigher = this.weigher;
+        return weigher == null ? 1 : Math.max(0, weigher.applyAsInt(value));
+    }
+
+    private boolean isExpired(Node node) {
+        long expireNanos = this.expireNanos;
+        return expireNanos > 0 && !node.dirty && System.nanoTime() - node.written > expireNanos;
+    }
+
     /**
      * Deletes a row from the table by its primary keys, and removes it from the cache.
      * This operation will always use a query.
      *
      * @param primaryKeys The keys to use to delete the row
      */
-    public synchronized void delete(Object... primaryKeys) {
+    public void delete(Object... primaryKeys) {
         remove(primaryKeys);
         sql.execute(deleteQuery, primaryKeys);
     }
@@ -98,11 +247,36 @@ public class SQLCache {
      *
      * @param primaryKeys The keys used to access the value
      */
-    public synchronized void remove(Object... primaryKeys) {
+    public void remove(Object... primaryKeys) {
         checkKeys(primaryKeys);
         SQLCacheEntry entry = new SQLCacheEntry(primaryKeys);
+        Node node = cache.get(entry);
+        if (node != null) {
+            unlink(node, true);
+        }
         modified.remove(entry);
-        cache.remove(entry);
+    }
+
+    /**
+     * Marks a node removed and removes it from the map
+     *
+     * @param force Whether to remove the node even if it has been modified
+     * @return Whether the node was removed by this call
+     */
+    private boolean unlink(Node node, boolean force) {
+        synchronized (node) {
+            if (node.removed || (node.dirty && !force)) {
+                return false;
+            }
+            node.removed = true;
+            node.dirty = false;
+        }
+        cache.remove(node.entry, node);
+        weight.addAndGet(-node.weight);
+        if (node.queued) {
+            stale.incrementAndGet();
+        }
+        return true;
     }
 
     /**
@@ -111,15 +285,30 @@ public class SQLCache {
      * @param value       The value to cache
      * @param primaryKeys The primary keys used to mutate the row
      */
-    public synchronized void update(Object value, Object... primaryKeys) {
+    public void update(Object value, Object... primaryKeys) {
         checkKeys(primaryKeys);
         SQLCacheEntry entry = new SQLCacheEntry(primaryKeys);
-        if (!cache.containsKey(entry)) {
-            return;
+        int newWeight = weigh(value);
+        while (true) {
+            Node node = cache.get(entry);
+            if (node == null) {
+                return;
+            }
+            synchronized (node) {
+                if (node.removed) {
+                    continue;
+                }
+                node.value = value;
+                node.version++;
+                node.written = System.nanoTime();
+                node.dirty = true;
+                modified.add(entry);
+                weight.addAndGet(newWeight - node.weight);
+                node.weight = newWeight;
+            }
+            break;
         }
-        cache.remove(entry);
-        modified.add(entry);
-        cache.put(entry, value);
+        evict();
     }
 
     /**
@@ -160,44 +349,255 @@ public class SQLCache {
      * @return Whether the value has been cached
      */
     public boolean isCached(Object... primaryKeys) {
-        return cache.containsKey(new SQLCacheEntry(primaryKeys));
+        Node node = cache.get(new SQLCacheEntry(primaryKeys));
+        return node != null && !node.removed && !isExpired(node);
     }
 
-    private synchronized Object select(Function<Object[], ?> supplier, Object... primaryKeys) {
+    private Object select(Function<Object[], ?> supplier, Object... primaryKeys) {
         checkKeys(primaryKeys);
         SQLCacheEntry entry = new SQLCacheEntry(primaryKeys);
-        Object value;
-        if (!cache.containsKey(entry)) {
-            value = supplier.apply(primaryKeys);
-            cache.put(entry, value);
-        } else {
-            value = cache.get(entry);
+        Node node = cache.get(entry);
+        if (node != null && isExpired(node) && unlink(node, false)) {
+            evictions.increment();
+            node = null;
+        }
+        if (node != null && !node.removed) {
+            hits.increment();
+            if (node.frequency < MAX_FREQUENCY) {
+                node.frequency++;
+            }
+            return node.value;
+        }
+        misses.increment();
+        return insert(entry, supplier.apply(primaryKeys));
+    }
+
+    /**
+     * Caches a loaded value unless a value is already cached for the entry
+     *
+     * @return The value which is cached for the entry
+     */
+    private Object insert(SQLCacheEntry entry, Object value) {
+        Node created = new Node(entry, value, weigh(value));
+        Node existing = cache.putIfAbsent(entry, created);
+        if (existing != null) {
+            return existing.value;
+        }
+        weight.addAndGet(created.weight);
+        if (maxWeight != Long.MAX_VALUE) {
+            created.queued = true;
+            clock.add(created);
         }
+        evict();
+        purge();
         return value;
     }
 
+    /**
+     * Drops removed values from the clock once they outnumber the live ones, and sweeps expired values if the cache
+     * has not been swept within the expiry duration
+     */
+    private void purge() {
+        long expireNanos = this.expireNanos;
+        long now = System.nanoTime();
+        boolean expire = expireNanos > 0 && now - lastPurge > expireNanos;
+        if ((!expire && stale.get() <= cache.size() + 64) || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            if (expire) {
+                lastPurge = now;
+                for (Node node : cache.values()) {
+                    if (isExpired(node) && unlink(node, false)) {
+                        evictions.increment();
+                    }
+                }
+            }
+            if (stale.get() > cache.size() + 64) {
+                stale.set(0);
+                clock.removeIf(n -> n.removed);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the values of all rows matching a condition into the cache with a single query, streaming the rows in
+     * batches rather than holding the whole result in memory. Values which are already cached are not replaced. The
+     * primary keys are cached as the objects returned by the database driver, so values must be selected with primary
+     * keys of the same types to be found. If the cache has a maximum size, loading more rows than it can hold evicts
+     * some of them again.
+     *
+     * @param condition The SQL condition to filter rows by, as it would appear after WHERE, or null to load all rows
+     * @param fields    A vararg of the fields to set in the condition
+     * @return The number of rows loaded
+     */
+    public int preload(String condition, Object... fields) {
+        String query = "SELECT " + String.join(", ", primaryKeyNames) + ", " + columnName + " FROM " + tableName
+                + (condition == null ? "" : " WHERE " + condition);
+        int[] count = {0};
+        int keys = primaryKeyNames.length;
+        try (Stream<Object[]> rows = sql.queryStream(query, PRELOAD_FETCH_SIZE, r -> {
+            Object[] row = new Object[keys + 1];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = r.get(i + 1);
+            }
+            return row;
+        }, fields)) {
+            rows.forEach(row -> {
+                insert(new SQLCacheEntry(Arrays.copyOf(row, keys)), row[keys]);
+                count[0]++;
+            });
+        }
+        return count[0];
+    }
+
+    /**
+     * Loads the values of all rows with the given primary keys into the cache, using one query for every 500 keys.
+     * Only usable if this cache has a single primary key. Values which are already cached are not replaced, and keys
+     * with no row in the table are not cached.
+     *
+     * @param primaryKeys The primary keys of the rows to load, such as those of all online players
+     * @return The number of rows loaded
+     */
+    public int preload(Collection<?> primaryKeys) {
+        if (primaryKeyNames.length != 1) {
+            throw new IllegalStateException("Preloading by keys requires a cache with a single primary key, use preload(String, Object...) instead");
+        }
+        int count = 0;
+        List<Object> chunk = new ArrayList<>();
+        Iterator<?> iter = primaryKeys.iterator();
+        while (iter.hasNext()) {
+            chunk.add(iter.next());
+            if (chunk.size() == 500 || !iter.hasNext()) {
+                String params = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+                count += preload(primaryKeyNames[0] + " IN (" + params + ")", chunk.toArray());
+                chunk.clear();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs {@link #preload(String, Object...)} asynchronously, to warm up the cache in the background after startup.
+     * Selects made while it runs query the table as usual.
+     *
+     * @param condition The SQL condition to filter rows by, as it would appear after WHERE, or null to load all rows
+     * @param fields    A vararg of the fields to set in the condition
+     * @return A CompletableFuture with the number of rows loaded
+     */
+    public CompletableFuture<Integer> preloadAsync(String condition, Object... fields) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Task.asyncDelayed(RedLib.getInstance(), () -> {
+            try {
+                future.complete(preload(condition, fields));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs {@link #preload(Collection)} asynchronously, to warm up the cache in the background after startup.
+     * Selects made while it runs query the table as usual.
+     *
+     * @param primaryKeys The primary keys of the rows to load
+     * @return A CompletableFuture with the number of rows loaded
+     */
+    public CompletableFuture<Integer> preloadAsync(Collection<?> primaryKeys) {
+        List<Object> keys = new ArrayList<>(primaryKeys);
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Task.asyncDelayed(RedLib.getInstance(), () -> {
+            try {
+                future.complete(preload(keys));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Evicts values until the cache is within its maximum weight. Each value is given another chance for every time
+     * it was read since the clock hand last passed it, up to {@link #MAX_FREQUENCY}. Modified values are skipped.
+     */
+    private void evict() {
+        if (weight.get() <= maxWeight || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long attempts = (long) cache.size() * (MAX_FREQUENCY + 1) + 1;
+            while (weight.get() > maxWeight && attempts-- > 0) {
+                Node node = clock.poll();
+                if (node == null) {
+                    break;
+                }
+                if (node.removed) {
+                    stale.decrementAndGet();
+                    continue;
+                }
+                node.queued = false;
+                if (!node.dirty && (node.frequency == 0 || isExpired(node)) && unlink(node, false)) {
+                    evictions.increment();
+                    continue;
+                }
+                if (!node.dirty && node.frequency > 0) {
+                    node.frequency--;
+                }
+                node.queued = true;
+                clock.add(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
     /**
      * Clears the cache. WARNING: This will revert all changes that have not been flushed!
      * No updates performed through {@link SQLCache#update(Object, Object...)} will be committed!
      */
     public void clear() {
-        cache.clear();
+        cache.values().forEach(n -> unlink(n, true));
+        modified.clear();
+        clock.removeIf(n -> n.removed);
+        stale.set(0);
     }
 
     /**
-     * Flushes the cache, saving all changes that were made.
+     * Flushes the cache, saving all changes that were made. The modified values are snapshotted first and written as
+     * a single batch, so values can be updated while the flush runs. Values updated after they were snapshotted stay
+     * modified and are written by the next flush.
      */
-    public synchronized void flush() {
-        modified.forEach(s -> {
-            Object val = cache.get(s);
-            Object[] objs = new Object[s.getParams().length + 1];
-            objs[0] = val;
-            for (int i = 0; i < s.getParams().length; i++) {
-                objs[i + 1] = s.getParams()[i];
+    public void flush() {
+        List<Object[]> rows = new ArrayList<>();
+        List<Node> nodes = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        for (SQLCacheEntry entry : modified) {
+            Node node = cache.get(entry);
+            if (node == null) {
+                modified.remove(entry);
+                continue;
             }
-            sql.execute(updateQuery, objs);
-        });
-        modified.clear();
+            synchronized (node) {
+                if (!node.dirty) {
+                    modified.remove(entry);
+                    continue;
+                }
+                rows.add(toRow(entry, node.value));
+                nodes.add(node);
+                versions.add(node.version);
+            }
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        sql.executeBatch(updateQuery, rows, 500, 0, null);
+        for (int i = 0; i < nodes.size(); i++) {
+            markClean(nodes.get(i), versions.get(i));
+        }
+        evict();
     }
 
     /**
@@ -205,19 +605,64 @@ public class SQLCache {
      *
      * @param primaryKeys The primary keys used to access the row
      */
-    public synchronized void flush(Object... primaryKeys) {
+    public void flush(Object... primaryKeys) {
         SQLCacheEntry entry = new SQLCacheEntry(primaryKeys);
-        Object val = cache.get(entry);
-        if (val == null) {
+        Node node = cache.get(entry);
+        if (node == null) {
+            modified.remove(entry);
             return;
         }
+        Object[] row;
+        int version;
+        synchronized (node) {
+            if (!node.dirty) {
+                modified.remove(entry);
+                return;
+            }
+            row = toRow(entry, node.value);
+            version = node.version;
+        }
+        sql.execute(updateQuery, row);
+        markClean(node, version);
+    }
+
+    private Object[] toRow(SQLCacheEntry entry, Object value) {
         Object[] objs = new Object[entry.getParams().length + 1];
-        objs[0] = val;
-        for (int i = 0; i < entry.getParams().length; i++) {
-            objs[i + 1] = entry.getParams()[i];
+        objs[0] = value;
+        System.arraycopy(entry.getParams(), 0, objs, 1, entry.getParams().length);
+        return objs;
+    }
+
+    /**
+     * Marks a written value clean, unless it was updated again while it was being written
+     */
+    private void markClean(Node node, int version) {
+        synchronized (node) {
+            if (node.version == version && !node.removed) {
+                node.dirty = false;
+                modified.remove(node.entry);
+            }
         }
-        sql.execute(updateQuery, objs);
-        modified.remove(entry);
+    }
+
+    private static class Node {
+
+        private SQLCacheEntry entry;
+        private volatile Object value;
+        private volatile int weight;
+        private volatile int frequency;
+        private volatile int version;
+        private volatile long written = System.nanoTime();
+        private volatile boolean dirty;
+        private volatile boolean removed;
+        private volatile boolean queued;
+
+        public Node(SQLCacheEntry entry, Object value, int weight) {
+            this.entry = entry;
+            this.value = value;
+            this.weight = weight;
+        }
+
     }
 
 }
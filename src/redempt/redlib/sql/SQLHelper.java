@@ -8,9 +8,22 @@ import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Wraps a {@link Connection} and offers helpful methods that don't need to be surrounded in a try/catch
@@ -75,13 +88,17 @@ public class SQLHelper implements Closeable {
         return openMySQL("localhost", 3306, username, password, database);
     }
 
-    private static <T extends Exception> void sneakyThrow(Exception e) throws T {
+    static <T extends Exception> void sneakyThrow(Exception e) throws T {
         throw (T) e;
     }
 
     private Connection connection;
-    private List<SQLCache> caches = new ArrayList<>();
+    private List<SQLCache> caches = new CopyOnWriteArrayList<>();
+    private List<SQLRowCache> rowCaches = new CopyOnWriteArrayList<>();
     private Task commitTask = null;
+    private StatementCache statements;
+    private ExecutorService writer;
+    private CompletableFuture<Void> queuedCommit;
 
     /**
      * Constructs a SQLHelper from a Connection. Get the Connection using one of the static SQLHelper open methods.
@@ -90,6 +107,17 @@ public class SQLHelper implements Closeable {
      */
     public SQLHelper(Connection connection) {
         this.connection = connection;
+        statements = new StatementCache(connection, 32);
+    }
+
+    /**
+     * Gets the cache of prepared statements used by the execute and query methods of this SQLHelper. Statements
+     * returned by {@link SQLHelper#prepareStatement(String, Object...)} are never cached.
+     *
+     * @return The StatementCache for this SQLHelper's connection
+     */
+    public StatementCache getStatementCache() {
+        return statements;
     }
 
     /**
@@ -106,6 +134,20 @@ public class SQLHelper implements Closeable {
         return cache;
     }
 
+    /**
+     * Creates and adds a cache for several columns of the rows of a table
+     *
+     * @param tableName       The name of the table to create the cache for
+     * @param columnNames     The names of the columns to load and cache for each row
+     * @param primaryKeyNames The primary keys used to access and mutate the rows
+     * @return The row cache
+     */
+    public SQLRowCache createRowCache(String tableName, String[] columnNames, String... primaryKeyNames) {
+        SQLRowCache cache = new SQLRowCache(this, tableName, columnNames, primaryKeyNames);
+        rowCaches.add(cache);
+        return cache;
+    }
+
     /**
      * Finds matching caches by a pattern and flushes a specific entry from them.
      *
@@ -176,17 +218,26 @@ public class SQLHelper implements Closeable {
     }
 
     /**
-     * Calls {@link SQLCache#flush()} on all caches owned by this SQLHelper
+     * @return The list of row caches for this SQLHelper
+     */
+    public List<SQLRowCache> getRowCaches() {
+        return rowCaches;
+    }
+
+    /**
+     * Calls {@link SQLCache#flush()} and {@link SQLRowCache#flush()} on all caches owned by this SQLHelper
      */
     public void flushAllCaches() {
         caches.forEach(SQLCache::flush);
+        rowCaches.forEach(SQLRowCache::flush);
     }
 
     /**
-     * Calls {@link SQLCache#clear()} on all caches owned by this SQLHelper
+     * Calls {@link SQLCache#clear()} and {@link SQLRowCache#clear()} on all caches owned by this SQLHelper
      */
     public void clearAllCaches() {
         caches.forEach(SQLCache::clear);
+        rowCaches.forEach(SQLRowCache::clear);
     }
 
     /**
@@ -196,13 +247,12 @@ public class SQLHelper implements Closeable {
      * @param fields  A vararg of the fields to set in the prepared statement
      */
     public void execute(String command, Object... fields) {
-        try {
-            PreparedStatement statement = prepareStatement(command, fields);
-            statement.execute();
-            statement.close();
-        } catch (SQLException e) {
-            sneakyThrow(e);
-        }
+        withStatement(command, fields, s -> {
+            if (s.execute()) {
+                s.getResultSet().close();
+            }
+            return null;
+        });
     }
 
     /**
@@ -214,15 +264,7 @@ public class SQLHelper implements Closeable {
      * @author U9G
      */
     public int executeUpdate(String command, Object... fields) {
-        int updatedRows = 0;
-        try {
-            PreparedStatement statement = prepareStatement(command, fields);
-            updatedRows = statement.executeUpdate();
-            statement.close();
-        } catch (SQLException e) {
-            sneakyThrow(e);
-        }
-        return updatedRows;
+        return withStatement(command, fields, PreparedStatement::executeUpdate);
     }
 
     /**
@@ -235,20 +277,11 @@ public class SQLHelper implements Closeable {
      * @return The value in the first column of the first row of the returned results, or null if none is present
      */
     public <T> T querySingleResult(String query, Object... fields) {
-        try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            if (!results.next()) {
-                return null;
+        return withStatement(query, fields, s -> {
+            try (ResultSet results = s.executeQuery()) {
+                return results.next() ? (T) results.getObject(1) : null;
             }
-            T obj = (T) results.getObject(1);
-            results.close();
-            statement.close();
-            return obj;
-        } catch (SQLException e) {
-            sneakyThrow(e);
-            return null;
-        }
+        });
     }
 
     /**
@@ -262,20 +295,11 @@ public class SQLHelper implements Closeable {
      * column can be parsed into one.
      */
     public String querySingleResultString(String query, Object... fields) {
-        try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            if (!results.next()) {
-                return null;
+        return withStatement(query, fields, s -> {
+            try (ResultSet results = s.executeQuery()) {
+                return results.next() ? results.getString(1) : null;
             }
-            String val = results.getString(1);
-            results.close();
-            statement.close();
-            return val;
-        } catch (SQLException e) {
-            sneakyThrow(e);
-            return null;
-        }
+        });
     }
 
     /**
@@ -287,20 +311,11 @@ public class SQLHelper implements Closeable {
      * @return The bytes in the first column of the first row of the returned results, or null if none is present
      */
     public byte[] querySingleResultBytes(String query, Object... fields) {
-        try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            if (!results.next()) {
-                return null;
+        return withStatement(query, fields, s -> {
+            try (ResultSet results = s.executeQuery()) {
+                return results.next() ? results.getBytes(1) : null;
             }
-            byte[] val = results.getBytes(1);
-            results.close();
-            statement.close();
-            return val;
-        } catch (SQLException e) {
-            sneakyThrow(e);
-            return null;
-        }
+        });
     }
 
     /**
@@ -314,20 +329,11 @@ public class SQLHelper implements Closeable {
      * column can be parsed into one.
      */
     public Long querySingleResultLong(String query, Object... fields) {
-        try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            if (!results.next()) {
-                return null;
+        return withStatement(query, fields, s -> {
+            try (ResultSet results = s.executeQuery()) {
+                return results.next() ? (Long) results.getLong(1) : null;
             }
-            long val = results.getLong(1);
-            results.close();
-            statement.close();
-            return val;
-        } catch (SQLException e) {
-            sneakyThrow(e);
-            return null;
-        }
+        });
     }
 
     /**
@@ -338,21 +344,19 @@ public class SQLHelper implements Closeable {
      * @param fields A vararg of the fields to set in the prepared statement
      * @param <T>    The type to populate the list with and return
      * @return A list of the value in the first column of each row returned by the query
+     * Note: The whole result is held in memory. Use {@link SQLHelper#queryStream(String, Function, Object...)} for
+     * queries which may return many rows.
      */
     public <T> List<T> queryResultList(String query, Object... fields) {
-        List<T> list = new ArrayList<>();
-        try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            while (results.next()) {
-                list.add((T) results.getObject(1));
+        return withStatement(query, fields, s -> {
+            List<T> list = new ArrayList<>();
+            try (ResultSet results = s.executeQuery()) {
+                while (results.next()) {
+                    list.add((T) results.getObject(1));
+                }
             }
-            results.close();
-            statement.close();
-        } catch (SQLException e) {
-            sneakyThrow(e);
-        }
-        return list;
+            return list;
+        });
     }
 
     /**
@@ -366,19 +370,130 @@ public class SQLHelper implements Closeable {
      * column can be parsed into one.
      */
     public List<String> queryResultStringList(String query, Object... fields) {
-        List<String> list = new ArrayList<>();
+        return withStatement(query, fields, s -> {
+            List<String> list = new ArrayList<>();
+            try (ResultSet results = s.executeQuery()) {
+                while (results.next()) {
+                    list.add(results.getString(1));
+                }
+            }
+            return list;
+        });
+    }
+
+    /**
+     * Executes a SQL command once for each row of fields as a JDBC batch, flushing every 1000 rows. If auto-commit
+     * is enabled, the rows are committed in chunks of 10000.
+     *
+     * @param command The SQL command to execute
+     * @param rows    The fields to set in the prepared statement for each execution
+     * @return The number of rows executed
+     */
+    public long executeBatch(String command, Iterable<Object[]> rows) {
+        return executeBatch(command, rows, 1000, 10000, null);
+    }
+
+    /**
+     * Executes a SQL command once for each row of fields as a JDBC batch, flushing every 1000 rows. If auto-commit
+     * is enabled, the rows are committed in chunks of 10000. The stream is closed once it has been consumed.
+     *
+     * @param command The SQL command to execute
+     * @param rows    The fields to set in the prepared statement for each execution
+     * @return The number of rows executed
+     */
+    public long executeBatch(String command, Stream<Object[]> rows) {
+        return executeBatch(command, rows, 1000, 10000, null);
+    }
+
+    /**
+     * Executes a SQL command once for each row of fields as a JDBC batch. If auto-commit is enabled and commitSize is
+     * positive, auto-commit is disabled while the batch runs and the rows are committed in chunks. If a row fails,
+     * only the uncommitted chunk is rolled back. If auto-commit is disabled, committing is left to the caller.
+     *
+     * @param command    The SQL command to execute
+     * @param rows       The fields to set in the prepared statement for each execution
+     * @param batchSize  The number of rows to send to the database at once
+     * @param commitSize The approximate number of rows to commit at once, rounded up to a multiple of batchSize,
+     *                   or 0 to leave committing to the connection
+     * @param progress   A callback which is passed the number of rows executed so far after every flush, or null
+     * @return The number of rows executed
+     */
+    public long executeBatch(String command, Iterable<Object[]> rows, int batchSize, int commitSize, LongConsumer progress) {
+        return executeBatch(command, rows.iterator(), batchSize, commitSize, progress);
+    }
+
+    /**
+     * Executes a SQL command once for each row of fields as a JDBC batch. If auto-commit is enabled and commitSize is
+     * positive, auto-commit is disabled while the batch runs and the rows are committed in chunks. If a row fails,
+     * only the uncommitted chunk is rolled back. If auto-commit is disabled, committing is left to the caller.
+     * The stream is closed once it has been consumed.
+     *
+     * @param command    The SQL command to execute
+     * @param rows       The fields to set in the prepared statement for each execution
+     * @param batchSize  The number of rows to send to the database at once
+     * @param commitSize The approximate number of rows to commit at once, rounded up to a multiple of batchSize,
+     *                   or 0 to leave committing to the connection
+     * @param progress   A callback which is passed the number of rows executed so far after every flush, or null
+     * @return The number of rows executed
+     */
+    public long executeBatch(String command, Stream<Object[]> rows, int batchSize, int commitSize, LongConsumer progress) {
+        try (Stream<Object[]> stream = rows) {
+            return executeBatch(command, stream.iterator(), batchSize, commitSize, progress);
+        }
+    }
+
+    private long executeBatch(String command, Iterator<Object[]> rows, int batchSize, int commitSize, LongConsumer progress) {
+        batchSize = Math.max(1, batchSize);
+        PreparedStatement statement = checkout(command);
+        boolean success = false;
+        boolean chunked = false;
+        long count = 0;
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            while (results.next()) {
-                list.add(results.getString(1));
+            chunked = commitSize > 0 && connection.getAutoCommit();
+            if (chunked) {
+                connection.setAutoCommit(false);
+            }
+            int pending = 0;
+            long uncommitted = 0;
+            while (rows.hasNext()) {
+                Object[] fields = rows.next();
+                for (int i = 0; i < fields.length; i++) {
+                    statement.setObject(i + 1, fields[i]);
+                }
+                statement.addBatch();
+                pending++;
+                if (pending < batchSize && rows.hasNext()) {
+                    continue;
+                }
+                statement.executeBatch();
+                count += pending;
+                uncommitted += pending;
+                pending = 0;
+                if (chunked && (uncommitted >= commitSize || !rows.hasNext())) {
+                    connection.commit();
+                    uncommitted = 0;
+                }
+                if (progress != null) {
+                    progress.accept(count);
+                }
             }
-            results.close();
-            statement.close();
+            success = true;
         } catch (SQLException e) {
             sneakyThrow(e);
+        } finally {
+            if (chunked) {
+                try {
+                    if (!success) {
+                        connection.rollback();
+                    }
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            statements.release(command, statement, success);
         }
-        return list;
+        return count;
     }
 
     /**
@@ -390,11 +505,52 @@ public class SQLHelper implements Closeable {
      * @return The results of the query
      */
     public Results queryResults(String query, Object... fields) {
+        return executeQuery(query, 0, fields);
+    }
+
+    /**
+     * Executes a SQL query as a prepared statement, setting its fields to the elements of the vararg passed, and
+     * returns a Stream which maps each row lazily as it is read, with a fetch size of 1000. The query's resources are
+     * released once the Stream has been fully consumed or is closed, so Streams which may not be fully consumed should
+     * be used in a try-with-resources block.
+     *
+     * @param query  The SQL query to execute
+     * @param mapper A function to map the current row of the Results to an element of the Stream
+     * @param fields A vararg of the fields to set in the prepared statement
+     * @param <T>    The type of the elements of the Stream
+     * @return A Stream of the mapped rows
+     */
+    public <T> Stream<T> queryStream(String query, Function<Results, T> mapper, Object... fields) {
+        return queryStream(query, 1000, mapper, fields);
+    }
+
+    /**
+     * Executes a SQL query as a prepared statement, setting its fields to the elements of the vararg passed, and
+     * returns a Stream which maps each row lazily as it is read. The query's resources are released once the Stream
+     * has been fully consumed or is closed, so Streams which may not be fully consumed should be used in a
+     * try-with-resources block.
+     *
+     * @param query     The SQL query to execute
+     * @param fetchSize The number of rows the driver should fetch from the database at once, which is only a hint.
+     *                  MySQL only streams rows if this is {@link Integer#MIN_VALUE}.
+     * @param mapper    A function to map the current row of the Results to an element of the Stream
+     * @param fields    A vararg of the fields to set in the prepared statement
+     * @param <T>       The type of the elements of the Stream
+     * @return A Stream of the mapped rows
+     */
+    public <T> Stream<T> queryStream(String query, int fetchSize, Function<Results, T> mapper, Object... fields) {
+        return executeQuery(query, fetchSize, fields).stream(mapper);
+    }
+
+    private Results executeQuery(String query, int fetchSize, Object[] fields) {
+        PreparedStatement statement = checkout(query, fields);
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            return new Results(results, statement);
-        } catch (SQLException e) {
+            if (fetchSize != 0) {
+                statement.setFetchSize(fetchSize);
+            }
+            return new Results(statement.executeQuery(), statement, query, statements, fetchSize != 0);
+        } catch (SQLException | RuntimeException e) {
+            statements.release(query, statement, false);
             sneakyThrow(e);
             return null;
         }
@@ -436,7 +592,7 @@ public class SQLHelper implements Closeable {
     }
 
     /**
-     * Starts a task to call commit() on this SQLHelper every n ticks. Pass -1 to disable.
+     * Starts a task to call {@link SQLHelper#commitAsync()} on this SQLHelper every n ticks. Pass -1 to disable.
      * Automatically sets autoCommit to false.
      *
      * @param ticks The number of ticks between commits, or -1 to disable
@@ -450,23 +606,75 @@ public class SQLHelper implements Closeable {
             return;
         }
         setAutoCommit(false);
-        commitTask = Task.syncRepeating(RedLib.getInstance(), this::commit, ticks, ticks);
+        commitTask = Task.syncRepeating(RedLib.getInstance(), () -> commitAsync().exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        }), ticks, ticks);
     }
 
     /**
      * Flushes all caches and commits the transaction
      */
     public void commit() {
+        synchronized (caches) {
+            try {
+                flushAllCaches();
+                connection.commit();
+            } catch (SQLException e) {
+                sneakyThrow(e);
+            }
+        }
+    }
+
+    /**
+     * Flushes all caches and commits the transaction on this SQLHelper's writer thread. Caches can still be read and
+     * updated while the flush runs, and updates made after a cache entry was written are kept for the next commit.
+     * If a commit is already waiting to start, its future is returned instead of queueing another.
+     *
+     * @return A CompletableFuture which completes once the transaction has been committed
+     */
+    public synchronized CompletableFuture<Void> commitAsync() {
+        if (queuedCommit != null) {
+            return queuedCommit;
+        }
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "SQLHelper-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        queuedCommit = future;
+        writer.execute(() -> {
+            synchronized (this) {
+                queuedCommit = null;
+            }
+            try {
+                commit();
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Rolls back the current transaction, discarding all changes made since the last commit. Changes made to caches
+     * which have not been flushed are unaffected.
+     */
+    public void rollback() {
         try {
-            flushAllCaches();
-            connection.commit();
+            connection.rollback();
         } catch (SQLException e) {
             sneakyThrow(e);
         }
     }
 
     /**
-     * Prepares a statement, setting its fields to the elements of the vararg passed
+     * Prepares a statement, setting its fields to the elements of the vararg passed. The statement is not taken
+     * from the statement cache, and must be closed by the caller.
      *
      * @param query  The SQL query to prepare
      * @param fields A vararg of the fields to set in the prepared statement
@@ -487,6 +695,50 @@ public class SQLHelper implements Closeable {
         }
     }
 
+    /**
+     * Takes a statement from the statement cache and sets its fields
+     */
+    private PreparedStatement checkout(String query, Object... fields) {
+        PreparedStatement statement = null;
+        try {
+            statement = statements.checkout(query);
+            for (int i = 0; i < fields.length; i++) {
+                statement.setObject(i + 1, fields[i]);
+            }
+            return statement;
+        } catch (SQLException e) {
+            if (statement != null) {
+                statements.release(query, statement, false);
+            }
+            sneakyThrow(e);
+            return null;
+        }
+    }
+
+    /**
+     * Runs a function with a cached statement, returning the statement to the cache afterwards
+     */
+    private <T> T withStatement(String query, Object[] fields, StatementFunction<T> func) {
+        PreparedStatement statement = checkout(query, fields);
+        boolean success = false;
+        try {
+            T value = func.apply(statement);
+            success = true;
+            return value;
+        } catch (SQLException e) {
+            sneakyThrow(e);
+            return null;
+        } finally {
+            statements.release(query, statement, success);
+        }
+    }
+
+    private interface StatementFunction<T> {
+
+        T apply(PreparedStatement statement) throws SQLException;
+
+    }
+
     /**
      * Closes the underlying connection this SQLHelper wraps
      */
@@ -494,10 +746,20 @@ public class SQLHelper implements Closeable {
     public void close() {
         try {
             setCommitInterval(-1);
+            ExecutorService writer;
+            synchronized (this) {
+                writer = this.writer;
+                this.writer = null;
+            }
+            if (writer != null) {
+                writer.shutdown();
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            statements.close();
             connection.close();
             connection = null;
             System.gc();
-        } catch (SQLException e) {
+        } catch (SQLException | InterruptedException e) {
             sneakyThrow(e);
         }
     }
@@ -512,10 +774,16 @@ public class SQLHelper implements Closeable {
         private ResultSet results;
         private boolean empty;
         private PreparedStatement statement;
+        private String query;
+        private StatementCache cache;
+        private boolean resetFetchSize;
 
-        private Results(ResultSet results, PreparedStatement statement) {
+        private Results(ResultSet results, PreparedStatement statement, String query, StatementCache cache, boolean resetFetchSize) {
             this.results = results;
             this.statement = statement;
+            this.query = query;
+            this.cache = cache;
+            this.resetFetchSize = resetFetchSize;
             try {
                 empty = !results.next();
             } catch (SQLException e) {
@@ -553,6 +821,7 @@ public class SQLHelper implements Closeable {
          */
         public void forEach(Consumer<Results> lambda) {
             if (isEmpty()) {
+                close();
                 return;
             }
             lambda.accept(this);
@@ -562,6 +831,57 @@ public class SQLHelper implements Closeable {
             close();
         }
 
+        /**
+         * Gets an Iterator which maps each row in these Results as it is reached. These Results are closed once the
+         * Iterator has passed the last row. Must be called before moving past the first row.
+         *
+         * @param mapper A function to map the current row of these Results to an element
+         * @param <T>    The type of the elements
+         * @return An Iterator of the mapped rows
+         */
+        public <T> Iterator<T> iterator(Function<Results, T> mapper) {
+            return new Iterator<T>() {
+
+                private boolean pending = !empty;
+                private boolean done = empty;
+
+                @Override
+                public boolean hasNext() {
+                    if (!pending && !done) {
+                        pending = Results.this.next();
+                        done = !pending;
+                    }
+                    if (done) {
+                        close();
+                    }
+                    return pending;
+                }
+
+                @Override
+                public T next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    pending = false;
+                    return mapper.apply(Results.this);
+                }
+
+            };
+        }
+
+        /**
+         * Gets a sequential Stream which maps each row in these Results lazily. These Results are closed once the
+         * Stream has passed the last row or is closed. Must be called before moving past the first row.
+         *
+         * @param mapper A function to map the current row of these Results to an element of the Stream
+         * @param <T>    The type of the elements of the Stream
+         * @return A Stream of the mapped rows
+         */
+        public <T> Stream<T> stream(Function<Results, T> mapper) {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(mapper), Spliterator.ORDERED), false)
+                    .onClose(this::close);
+        }
+
         /**
          * Gets an Object in the given column in the current row
          *
@@ -642,15 +962,27 @@ public class SQLHelper implements Closeable {
         }
 
         /**
-         * Closes the wrapped ResultSet. Call this when you are done using these Results.
+         * Closes the wrapped ResultSet and returns its statement to the statement cache. Call this when you are done
+         * using these Results.
          */
         @Override
         public void close() {
+            if (statement == null) {
+                return;
+            }
+            PreparedStatement statement = this.statement;
+            this.statement = null;
+            boolean success = false;
             try {
                 results.close();
-                statement.close();
+                if (resetFetchSize) {
+                    statement.setFetchSize(0);
+                }
+                success = true;
             } catch (SQLException e) {
                 sneakyThrow(e);
+            } finally {
+                cache.release(query, statement, success);
             }
         }
 
@@ -0,0 +1,342 @@
+package redempt.redlib.sql;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A small pool of connections to a database, each wrapped in its own {@link SQLHelper} and owned by a single worker
+ * thread, with an asynchronous API. Every task runs entirely on one connection, so a function passed to
+ * {@link #transaction(Function)} sees its own uncommitted changes. Each pool has a bounded queue of waiting tasks,
+ * and submitting a task while the queue is full blocks the submitting thread until there is room.
+ * <br><br>
+ * SQLite pools have a single writer connection and several read-only reader connections, using write-ahead
+ * logging so reads are not blocked by writes. Other pools send reads and writes to the same connections.
+ * <br><br>
+ * Futures returned by this pool are completed on its worker threads, not the main thread. Tasks submitted after the
+ * pool has been closed complete exceptionally with a {@link RejectedExecutionException}.
+ *
+ * @author Redempt
+ */
+public class SQLPool implements Closeable {
+
+    /**
+     * Opens a pool of connections to a SQLite database file, with one writer and a number of readers
+     *
+     * @param file    The path to the SQLite database file
+     * @param readers The number of reader connections, at least 1
+     * @return The SQLPool
+     */
+    public static SQLPool sqlite(Path file, int readers) {
+        return new SQLPool(() -> openSQLite(file, "PRAGMA journal_mode=WAL;"),
+                () -> openSQLite(file, "PRAGMA query_only=true;"), readers, 256);
+    }
+
+    private static Connection openSQLite(Path file, String pragma) {
+        Connection connection = SQLHelper.openSQLite(file);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(pragma);
+        } catch (SQLException e) {
+            try {
+                connection.close();
+            } catch (SQLException e2) {
+                e.addSuppressed(e2);
+            }
+            SQLHelper.sneakyThrow(e);
+        }
+        return connection;
+    }
+
+    /**
+     * Opens a pool of connections to a MySQL database
+     *
+     * @param ip       The IP address to connect to
+     * @param port     The port to connect to
+     * @param username The username to log in with
+     * @param password The password to log in with
+     * @param database The database to use, will be created if it doesn't exist
+     * @param size     The number of connections, at least 1
+     * @return The SQLPool
+     */
+    public static SQLPool mysql(String ip, int port, String username, String password, String database, int size) {
+        return new SQLPool(() -> SQLHelper.openMySQL(ip, port, username, password, database), size, 256);
+    }
+
+    private Workers writers;
+    private Workers readers;
+
+    /**
+     * Creates a pool where every connection is used for both reads and writes
+     *
+     * @param connector Opens a new connection
+     * @param size      The number of connections, at least 1
+     * @param queueSize The maximum number of tasks which can wait for a connection before submitting blocks
+     */
+    public SQLPool(Supplier<Connection> connector, int size, int queueSize) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("An SQLPool must have at least 1 connection, got " + size);
+        }
+        writers = new Workers("SQLPool", connector, size, queueSize);
+        readers = writers;
+    }
+
+    /**
+     * Creates a pool with a single writer connection and separate reader connections. The writer connection is
+     * opened before this constructor returns, and reader connections are opened as they are first used.
+     *
+     * @param writer    Opens the writer connection
+     * @param reader    Opens a reader connection
+     * @param readers   The number of reader connections, at least 1
+     * @param queueSize The maximum number of tasks which can wait for each kind of connection before submitting blocks
+     */
+    public SQLPool(Supplier<Connection> writer, Supplier<Connection> reader, int readers, int queueSize) {
+        if (readers <= 0) {
+            throw new IllegalArgumentException("An SQLPool must have at least 1 reader connection, got " + readers);
+        }
+        writers = new Workers("SQLPool-writer", writer, 1, queueSize);
+        // Open the writer before any reader, so settings it applies to the database, like WAL, are in effect first
+        writers.submit(sql -> null).join();
+        this.readers = new Workers("SQLPool-reader", reader, readers, queueSize);
+    }
+
+    /**
+     * Runs a function which only reads from the database on a reader connection
+     *
+     * @param func The function to run
+     * @param <T>  The type returned by the function
+     * @return A CompletableFuture with the value returned by the function
+     */
+    public <T> CompletableFuture<T> read(Function<SQLHelper, T> func) {
+        return readers.submit(func);
+    }
+
+    /**
+     * Runs a function which may write to the database on a writer connection
+     *
+     * @param func The function to run
+     * @param <T>  The type returned by the function
+     * @return A CompletableFuture with the value returned by the function
+     */
+    public <T> CompletableFuture<T> write(Function<SQLHelper, T> func) {
+        return writers.submit(func);
+    }
+
+    /**
+     * Runs a function in a transaction on a writer connection. The transaction is committed if the function
+     * returns normally, and rolled back if it throws.
+     *
+     * @param func The function to run
+     * @param <T>  The type returned by the function
+     * @return A CompletableFuture with the value returned by the function
+     */
+    public <T> CompletableFuture<T> transaction(Function<SQLHelper, T> func) {
+        return writers.submit(sql -> {
+            sql.setAutoCommit(false);
+            try {
+                T value = func.apply(sql);
+                sql.commit();
+                return value;
+            } catch (Throwable e) {
+                try {
+                    sql.rollback();
+                } catch (Throwable e2) {
+                    e.addSuppressed(e2);
+                }
+                throw e;
+            } finally {
+                sql.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Executes a SQL command asynchronously on a writer connection
+     *
+     * @param command The SQL command to execute
+     * @param fields  A vararg of the fields to set in the prepared statement
+     * @return A CompletableFuture which completes when the command has been executed
+     */
+    public CompletableFuture<Void> executeAsync(String command, Object... fields) {
+        return write(sql -> {
+            sql.execute(command, fields);
+            return null;
+        });
+    }
+
+    /**
+     * Executes a SQL update asynchronously on a writer connection
+     *
+     * @param command The SQL command to execute
+     * @param fields  A vararg of the fields to set in the prepared statement
+     * @return A CompletableFuture with the number of updated rows
+     */
+    public CompletableFuture<Integer> executeUpdateAsync(String command, Object... fields) {
+        return write(sql -> sql.executeUpdate(command, fields));
+    }
+
+    /**
+     * Runs {@link SQLHelper#querySingleResult(String, Object...)} asynchronously on a reader connection
+     *
+     * @param query  The SQL query to execute
+     * @param fields A vararg of the fields to set in the prepared statement
+     * @param <T>    The type to cast the return value to
+     * @return A CompletableFuture with the value in the first column of the first row, or null if none is present
+     */
+    public <T> CompletableFuture<T> querySingleResultAsync(String query, Object... fields) {
+        return read(sql -> sql.querySingleResult(query, fields));
+    }
+
+    /**
+     * Runs {@link SQLHelper#querySingleResultString(String, Object...)} asynchronously on a reader connection
+     *
+     * @param query  The SQL query to execute
+     * @param fields A vararg of the fields to set in the prepared statement
+     * @return A CompletableFuture with the String in the first column of the first row, or null if none is present
+     */
+    public CompletableFuture<String> querySingleResultStringAsync(String query, Object... fields) {
+        return read(sql -> sql.querySingleResultString(query, fields));
+    }
+
+    /**
+     * Runs {@link SQLHelper#querySingleResultLong(String, Object...)} asynchronously on a reader connection
+     *
+     * @param query  The SQL query to execute
+     * @param fields A vararg of the fields to set in the prepared statement
+     * @return A CompletableFuture with the Long in the first column of the first row, or null if none is present
+     */
+    public CompletableFuture<Long> querySingleResultLongAsync(String query, Object... fields) {
+        return read(sql -> sql.querySingleResultLong(query, fields));
+    }
+
+    /**
+     * Runs {@link SQLHelper#queryResultList(String, Object...)} asynchronously on a reader connection
+     *
+     * @param query  The SQL query to execute
+     * @param fields A vararg of the fields to set in the prepared statement
+     * @param <T>    The type to populate the list with
+     * @return A CompletableFuture with a list of the value in the first column of each row
+     */
+    public <T> CompletableFuture<List<T>> queryResultListAsync(String query, Object... fields) {
+        return read(sql -> sql.queryResultList(query, fields));
+    }
+
+    /**
+     * @return The number of tasks waiting for a connection
+     */
+    public int getQueuedTasks() {
+        return writers == readers ? writers.executor.getQueue().size()
+                : writers.executor.getQueue().size() + readers.executor.getQueue().size();
+    }
+
+    /**
+     * Waits for all submitted tasks to finish, then closes every connection in this pool
+     */
+    @Override
+    public void close() {
+        writers.close();
+        if (readers != writers) {
+            readers.close();
+        }
+    }
+
+    /**
+     * A fixed set of threads, each with its own connection
+     */
+    private static class Workers {
+
+        private ThreadPoolExecutor executor;
+        private List<Worker> threads = new CopyOnWriteArrayList<>();
+
+        public Workers(String name, Supplier<Connection> connector, int size, int queueSize) {
+            AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                Worker worker = new Worker(r, name + "-" + count.incrementAndGet(), connector);
+                threads.add(worker);
+                return worker;
+            }, (r, executor) -> {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("SQLPool has been closed");
+                }
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+                // The pool may have been closed while waiting for room, in which case nothing would run the task
+                if (executor.isShutdown() && executor.getQueue().remove(r)) {
+                    throw new RejectedExecutionException("SQLPool has been closed");
+                }
+            });
+        }
+
+        public <T> CompletableFuture<T> submit(Function<SQLHelper, T> func) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                executor.execute(() -> {
+                    try {
+                        future.complete(func.apply(((Worker) Thread.currentThread()).getHelper()));
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        public void close() {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            threads.forEach(Worker::close);
+        }
+
+    }
+
+    private static class Worker extends Thread {
+
+        private Supplier<Connection> connector;
+        private SQLHelper helper;
+
+        public Worker(Runnable task, String name, Supplier<Connection> connector) {
+            super(task, name);
+            this.connector = connector;
+            setDaemon(true);
+        }
+
+        /**
+         * Opens the connection on first use, so it is only ever used by this thread
+         */
+        public SQLHelper getHelper() {
+            if (helper == null) {
+                helper = new SQLHelper(connector.get());
+            }
+            return helper;
+        }
+
+        public void close() {
+            if (helper != null) {
+                helper.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,450 @@
+package redempt.redlib.sql;
+
+import redempt.redlib.sql.SQLHelper.Results;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache to store several columns of the rows of a single SQL table. A row is loaded with a single query, and each
+ * column of it can be read and modified separately. Only the columns which were modified are written when the row
+ * is flushed, in a single UPDATE.
+ *
+ * @author Redempt
+ */
+public class SQLRowCache {
+
+    private String tableName;
+    private String[] columnNames;
+    private String[] primaryKeyNames;
+    private Map<String, Integer> columnIndexes = new HashMap<>();
+    private String selectQuery;
+    private String deleteQuery;
+    private String whereClause;
+    private Map<Long, String> updateQueries = new ConcurrentHashMap<>();
+    private Map<SQLCacheEntry, Row> cache = new ConcurrentHashMap<>();
+    private Set<Row> modified = ConcurrentHashMap.newKeySet();
+    private SQLHelper sql;
+
+    protected SQLRowCache(SQLHelper sql, String tableName, String[] columnNames, String... primaryKeyNames) {
+        if (columnNames.length == 0 || columnNames.length > 64) {
+            throw new IllegalArgumentException("A row cache must have between 1 and 64 columns");
+        }
+        this.sql = sql;
+        this.tableName = tableName;
+        this.columnNames = columnNames.clone();
+        this.primaryKeyNames = primaryKeyNames;
+        for (int i = 0; i < columnNames.length; i++) {
+            columnIndexes.put(columnNames[i], i);
+        }
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < primaryKeyNames.length; i++) {
+            where.append(i == 0 ? "" : " AND ").append(primaryKeyNames[i]).append(" = ?");
+        }
+        whereClause = where.toString();
+        selectQuery = "SELECT " + String.join(", ", columnNames) + " FROM " + tableName + " WHERE " + whereClause;
+        deleteQuery = "DELETE FROM " + tableName + " WHERE " + whereClause;
+    }
+
+    /**
+     * @return The name of the table this SQLRowCache is for
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return The names of the columns this SQLRowCache loads
+     */
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * @return The names of the primary keys used to access and mutate the rows this SQLRowCache is for
+     */
+    public String[] getPrimaryKeyNames() {
+        return primaryKeyNames;
+    }
+
+    private void checkKeys(Object... primaryKeys) {
+        if (primaryKeys.length != primaryKeyNames.length) {
+            throw new IllegalArgumentException("Expected " + primaryKeyNames.length + " primary keys, got " + primaryKeys.length);
+        }
+    }
+
+    private int getColumnIndex(String column) {
+        Integer index = columnIndexes.get(column);
+        if (index == null) {
+            throw new IllegalArgumentException("Column " + column + " is not loaded by this row cache");
+        }
+        return index;
+    }
+
+    /**
+     * Gets the cached row, or queries all of its columns if it has not been cached yet
+     *
+     * @param primaryKeys The primary keys used to access the row
+     * @return The row, or null if no row exists with the given primary keys
+     */
+    public Row select(Object... primaryKeys) {
+        checkKeys(primaryKeys);
+        SQLCacheEntry entry = new SQLCacheEntry(primaryKeys);
+        Row row = cache.get(entry);
+        if (row != null) {
+            return row;
+        }
+        Object[] values;
+        try (Results results = sql.queryResults(selectQuery, primaryKeys)) {
+            if (results.isEmpty()) {
+                return null;
+            }
+            values = new Object[columnNames.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = results.get(i + 1);
+            }
+        }
+        row = new Row(entry, values);
+        Row existing = cache.putIfAbsent(entry, row);
+        return existing == null ? row : existing;
+    }
+
+    /**
+     * Checks whether a row has been cached by its primary keys
+     *
+     * @param primaryKeys The primary keys used to access the row
+     * @return Whether the row has been cached
+     */
+    public boolean isCached(Object... primaryKeys) {
+        return cache.containsKey(new SQLCacheEntry(primaryKeys));
+    }
+
+    /**
+     * Removes a cached row, but does not affect the table. Changes to the row which have not been flushed are lost,
+     * and the removed Row will no longer be flushed.
+     *
+     * @param primaryKeys The primary keys used to access the row
+     */
+    public void remove(Object... primaryKeys) {
+        checkKeys(primaryKeys);
+        Row row = cache.remove(new SQLCacheEntry(primaryKeys));
+        if (row != null) {
+            synchronized (row) {
+                row.removed = true;
+            }
+            modified.remove(row);
+        }
+    }
+
+    /**
+     * Deletes a row from the table by its primary keys, and removes it from the cache.
+     * This operation will always use a query.
+     *
+     * @param primaryKeys The primary keys used to delete the row
+     */
+    public void delete(Object... primaryKeys) {
+        remove(primaryKeys);
+        sql.execute(deleteQuery, primaryKeys);
+    }
+
+    /**
+     * Clears the cache. WARNING: This will revert all changes that have not been flushed!
+     */
+    public void clear() {
+        for (SQLCacheEntry entry : cache.keySet()) {
+            remove(entry.getParams());
+        }
+        modified.clear();
+    }
+
+    /**
+     * Flushes the cache, saving all changes that were made. Rows with the same set of modified columns are written
+     * together as a batch, and rows can be modified while the flush runs.
+     */
+    public void flush() {
+        Map<Long, List<Object[]>> batches = new HashMap<>();
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Row row : modified) {
+            Snapshot snapshot = row.snapshot();
+            if (snapshot == null) {
+                modified.remove(row);
+                continue;
+            }
+            batches.computeIfAbsent(snapshot.mask, k -> new ArrayList<>()).add(snapshot.params);
+            snapshots.add(snapshot);
+        }
+        batches.forEach((mask, rows) -> sql.executeBatch(getUpdateQuery(mask), rows, 500, 0, null));
+        snapshots.forEach(Snapshot::markClean);
+    }
+
+    /**
+     * Flushes a single row from the cache, saving changes that were made to it
+     *
+     * @param primaryKeys The primary keys used to access the row
+     */
+    public void flush(Object... primaryKeys) {
+        Row row = cache.get(new SQLCacheEntry(primaryKeys));
+        if (row == null) {
+            return;
+        }
+        Snapshot snapshot = row.snapshot();
+        if (snapshot == null) {
+            return;
+        }
+        sql.execute(getUpdateQuery(snapshot.mask), snapshot.params);
+        snapshot.markClean();
+    }
+
+    private String getUpdateQuery(long mask) {
+        return updateQueries.computeIfAbsent(mask, k -> {
+            StringBuilder builder = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
+            boolean first = true;
+            for (int i = 0; i < columnNames.length; i++) {
+                if ((mask & (1L << i)) == 0) {
+                    continue;
+                }
+                builder.append(first ? "" : ", ").append(columnNames[i]).append(" = ?");
+                first = false;
+            }
+            return builder.append(" WHERE ").append(whereClause).toString();
+        });
+    }
+
+    /**
+     * A single cached row. Columns are read from and written to the cache, and changes are saved to the table when
+     * the row or the cache is flushed.
+     *
+     * @author Redempt
+     */
+    public class Row {
+
+        private SQLCacheEntry entry;
+        private Object[] values;
+        private int[] versions;
+        private long dirty;
+        private boolean removed;
+
+        private Row(SQLCacheEntry entry, Object[] values) {
+            this.entry = entry;
+            this.values = values;
+            versions = new int[values.length];
+        }
+
+        /**
+         * @return The primary keys of this row
+         */
+        public Object[] getPrimaryKeys() {
+            return entry.getParams().clone();
+        }
+
+        /**
+         * Gets the value in a column of this row
+         *
+         * @param column The name of the column
+         * @param <T>    The type to cast the value to
+         * @return The value in the column
+         */
+        public synchronized <T> T get(String column) {
+            return (T) values[getColumnIndex(column)];
+        }
+
+        /**
+         * Gets the value in a column of this row as a String
+         *
+         * @param column The name of the column
+         * @return The String in the column
+         * Note: This method exists because {@link java.sql.ResultSet#getObject(int)} can return an Integer if the
+         * String in the column can be parsed into one.
+         */
+        public String getString(String column) {
+            Object value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        /**
+         * Gets the value in a column of this row as a Long
+         *
+         * @param column The name of the column
+         * @return The Long in the column
+         */
+        public Long getLong(String column) {
+            Number value = get(column);
+            return value == null ? null : value.longValue();
+        }
+
+        /**
+         * Gets the value in a column of this row as an Integer
+         *
+         * @param column The name of the column
+         * @return The Integer in the column
+         */
+        public Integer getInt(String column) {
+            Number value = get(column);
+            return value == null ? null : value.intValue();
+        }
+
+        /**
+         * Gets the value in a column of this row as a Double
+         *
+         * @param column The name of the column
+         * @return The Double in the column
+         */
+        public Double getDouble(String column) {
+            Number value = get(column);
+            return value == null ? null : value.doubleValue();
+        }
+
+        /**
+         * Gets the bytes in a column of this row
+         *
+         * @param column The name of the column
+         * @return The bytes in the column
+         */
+        public byte[] getBytes(String column) {
+            return get(column);
+        }
+
+        /**
+         * Sets the value in a column of this row, marking the column as modified
+         *
+         * @param column The name of the column
+         * @param value  The value to set
+         */
+        public void set(String column, Object value) {
+            int index = getColumnIndex(column);
+            synchronized (this) {
+                values[index] = value;
+                versions[index]++;
+                dirty |= 1L << index;
+                if (removed) {
+                    return;
+                }
+            }
+            modified.add(this);
+        }
+
+        /**
+         * Sets a String in a column of this row, marking the column as modified
+         *
+         * @param column The name of the column
+         * @param value  The String to set
+         */
+        public void setString(String column, String value) {
+            set(column, value);
+        }
+
+        /**
+         * Sets a Long in a column of this row, marking the column as modified
+         *
+         * @param column The name of the column
+         * @param value  The Long to set
+         */
+        public void setLong(String column, Long value) {
+            set(column, value);
+        }
+
+        /**
+         * Sets an Integer in a column of this row, marking the column as modified
+         *
+         * @param column The name of the column
+         * @param value  The Integer to set
+         */
+        public void setInt(String column, Integer value) {
+            set(column, value);
+        }
+
+        /**
+         * Sets a Double in a column of this row, marking the column as modified
+         *
+         * @param column The name of the column
+         * @param value  The Double to set
+         */
+        public void setDouble(String column, Double value) {
+            set(column, value);
+        }
+
+        /**
+         * Sets the bytes in a column of this row, marking the column as modified
+         *
+         * @param column The name of the column
+         * @param value  The bytes to set
+         */
+        public void setBytes(String column, byte[] value) {
+            set(column, value);
+        }
+
+        /**
+         * @return Whether any column of this row has been modified since it was last flushed
+         */
+        public synchronized boolean isModified() {
+            return dirty != 0;
+        }
+
+        /**
+         * @return The names of the columns of this row which have been modified since it was last flushed
+         */
+        public synchronized List<String> getModifiedColumns() {
+            List<String> list = new ArrayList<>();
+            for (int i = 0; i < columnNames.length; i++) {
+                if ((dirty & (1L << i)) != 0) {
+                    list.add(columnNames[i]);
+                }
+            }
+            return Collections.unmodifiableList(list);
+        }
+
+        private synchronized Snapshot snapshot() {
+            if (dirty == 0 || removed) {
+                return null;
+            }
+            Object[] params = new Object[Long.bitCount(dirty) + entry.getParams().length];
+            int pos = 0;
+            for (int i = 0; i < values.length; i++) {
+                if ((dirty & (1L << i)) != 0) {
+                    params[pos++] = values[i];
+                }
+            }
+            System.arraycopy(entry.getParams(), 0, params, pos, entry.getParams().length);
+            return new Snapshot(this, dirty, params, versions.clone());
+        }
+
+    }
+
+    private class Snapshot {
+
+        private Row row;
+        private long mask;
+        private Object[] params;
+        private int[] versions;
+
+        private Snapshot(Row row, long mask, Object[] params, int[] versions) {
+            this.row = row;
+            this.mask = mask;
+            this.params = params;
+            this.versions = versions;
+        }
+
+        /**
+         * Marks the written columns clean, except those which were modified again while being written
+         */
+        private void markClean() {
+            synchronized (row) {
+                for (int i = 0; i < versions.length; i++) {
+                    if ((mask & (1L << i)) != 0 && row.versions[i] == versions[i]) {
+                        row.dirty &= ~(1L << i);
+                    }
+                }
+                if (row.dirty == 0) {
+                    modified.remove(row);
+                }
+            }
+        }
+
+    }
+
+}
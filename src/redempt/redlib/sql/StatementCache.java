@@ -0,0 +1,167 @@
+package redempt.redlib.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least-recently-used cache of {@link PreparedStatement}s for a single connection, keyed by their SQL.
+ * A statement is removed from the cache while it is checked out, so it is never shared by two callers at once.
+ * If the statement for a query is already checked out, a new one is prepared, and the extra statement is closed
+ * when it is released. Retrieved with {@link SQLHelper#getStatementCache()}.
+ *
+ * @author Redempt
+ */
+public class StatementCache {
+
+    private Connection connection;
+    private int maxSize;
+    private boolean closed;
+    private LinkedHashMap<String, PreparedStatement> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+
+    StatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Takes the cached statement for a query, or prepares a new one if there is none
+     *
+     * @param query The SQL query
+     * @return The statement, which must be passed to {@link #release(String, PreparedStatement, boolean)}
+     * @throws SQLException If the statement could not be prepared
+     */
+    PreparedStatement checkout(String query) throws SQLException {
+        synchronized (this) {
+            PreparedStatement statement = idle.remove(query);
+            if (statement != null) {
+                hits.increment();
+                return statement;
+            }
+        }
+        misses.increment();
+        return connection.prepareStatement(query);
+    }
+
+    /**
+     * Returns a statement taken with {@link #checkout(String)}. Its parameters are cleared and it is put back in
+     * the cache, or closed if it failed, the cache is full of more recently used statements, or the query is
+     * already cached.
+     *
+     * @param query     The SQL query the statement was prepared with
+     * @param statement The statement
+     * @param reusable  False if the statement failed and should not be reused
+     */
+    void release(String query, PreparedStatement statement, boolean reusable) {
+        try {
+            if (reusable && !statement.isClosed()) {
+                statement.clearParameters();
+                synchronized (this) {
+                    if (!closed && maxSize > 0 && !idle.containsKey(query)) {
+                        idle.put(query, statement);
+                        trim();
+                        return;
+                    }
+                }
+            }
+            statement.close();
+        } catch (SQLException e) {
+            close(statement);
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, PreparedStatement>> iter = idle.entrySet().iterator();
+        while (idle.size() > maxSize && iter.hasNext()) {
+            PreparedStatement eldest = iter.next().getValue();
+            iter.remove();
+            evictions.increment();
+            close(eldest);
+        }
+    }
+
+    private static void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sets the maximum number of idle statements to keep, closing the least recently used ones if there are more
+     * than that cached
+     *
+     * @param maxSize The maximum number of statements to cache, or 0 to disable caching
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        trim();
+    }
+
+    /**
+     * @return The maximum number of statements this cache will keep
+     */
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The number of statements currently cached and not checked out
+     */
+    public synchronized int size() {
+        return idle.size();
+    }
+
+    /**
+     * @return The number of times a cached statement was reused
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of times a statement had to be prepared
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of statements closed to make room for more recently used ones
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The fraction of checkouts which reused a cached statement, between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    /**
+     * Closes and removes all idle statements in the cache. Statements checked out when this is called are not
+     * affected, and are cached again as usual when they are released. Cleared statements are not counted as evictions.
+     */
+    public synchronized void clear() {
+        idle.values().forEach(StatementCache::close);
+        idle.clear();
+    }
+
+    synchronized void close() {
+        closed = true;
+        clear();
+    }
+
+}